@@ -0,0 +1,163 @@
+package edu.cwru.sepia.agent.minimax;
+
+import edu.cwru.sepia.environment.model.state.State;
+import edu.cwru.sepia.environment.model.state.Unit;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Times the hot parts of the agent on the opening position of each shipped map, so a change to
+ * GameState or MinimaxAlphaBeta can be checked for speed from the command line:
+ *
+ * new GameState: starting a turn's state from the view, with the map's MapData already cached
+ * getChildren: generating every child of the footmen's first turn
+ * getUtility: evaluating the opening position, with the cached value and distances cleared each time
+ * getAStarPathLength: A* from every footman to every archer
+ * alphaBetaSearch: a fixed depth search from the opening position with an empty transposition table
+ *
+ * Each benchmark runs untimed for a warmup period so the JIT has compiled it, then for a
+ * measurement period. Only the operation itself is timed, not the setup before it (clearing the
+ * table between searches). It reports operations per second, searched nodes per second for the
+ * searches, and bytes allocated per operation and per second by the benchmark thread.
+ *
+ * Usage: Benchmark [seconds per benchmark] [max plys] [map xml ...]
+ * e.g. java -cp lib/Sepia.jar:<compiled classes> edu.cwru.sepia.agent.minimax.Benchmark 2 7
+ */
+public class Benchmark {
+
+    private static final String[] DEFAULT_MAPS = {
+            "data/Game2fv1a_Obstacles.xml", "data/Game2fv2a.xml", "data/Game2fv2a_Obstacles.xml"};
+    private static final int MIN_PLYS = 3;
+
+    private static volatile long sink; // results go here so the JIT can't drop the work
+
+    // one timed operation
+    private static abstract class Operation {
+        // untimed setup before each run
+        void prepare() {
+        }
+
+        // returns the number of nodes it searched or 0
+        abstract long run();
+    }
+
+    public static void main(String[] args) throws Exception {
+        double seconds = args.length > 0 ? Double.parseDouble(args[0]) : 2;
+        int maxPlys = args.length > 1 ? Integer.parseInt(args[1]) : 7;
+        String[] maps = args.length > 2 ? Arrays.copyOfRange(args, 2, args.length) : DEFAULT_MAPS;
+        long period = (long) (seconds * 1e9);
+
+        System.out.printf("%-32s %-22s %14s %14s %14s %12s%n", "map", "benchmark", "ops/s", "nodes/s", "bytes/op", "MB/s");
+        for (String map : maps) {
+            final State.StateView view = MapLoader.load(map, 0);
+            final GameState root = new GameState(view);
+            String name = map.substring(map.lastIndexOf('/') + 1);
+
+            run(name, "new GameState", period, new Operation() {
+                @Override
+                long run() {
+                    sink += new GameState(view).xExtent;
+                    return 0;
+                }
+            });
+
+            run(name, "getChildren", period, new Operation() {
+                @Override
+                long run() {
+                    sink += root.getChildren().size();
+                    return 0;
+                }
+            });
+
+            run(name, "getUtility", period, new Operation() {
+                @Override
+                long run() {
+                    root.forgetUtility();
+                    sink += (long) root.getUtility();
+                    return 0;
+                }
+            });
+
+            final List<int[]> paths = footmanToArcherPaths(view);
+            run(name, "getAStarPathLength", period, new Operation() {
+                @Override
+                long run() {
+                    for (int[] path : paths) {
+                        sink += root.getAStarPathLength(path[0], path[1], path[2], path[3]);
+                    }
+                    return 0;
+                }
+            });
+
+            for (int plys = MIN_PLYS; plys <= maxPlys; plys++) {
+                final int depth = plys;
+                final MinimaxAlphaBeta agent = new MinimaxAlphaBeta(0, new String[]{String.valueOf(depth)});
+                run(name, "alphaBetaSearch " + depth, period, new Operation() {
+                    //Every search starts cold, otherwise all but the first would be table lookups
+                    @Override
+                    void prepare() {
+                        agent.table.clear();
+                        agent.ordering.newTurn();
+                        agent.nodes.reset();
+                    }
+
+                    @Override
+                    long run() {
+                        GameStateChild best = agent.alphaBetaSearch(new GameStateChild(null, root.copy()), depth,
+                                Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, MinimaxAlphaBeta.MinimaxState.MAX);
+                        sink += best.action.size();
+                        return agent.nodes.sum();
+                    }
+                });
+                agent.shutdown();
+            }
+        }
+    }
+
+    // the start and end cell of a path from every footman to every archer
+    private static List<int[]> footmanToArcherPaths(State.StateView view) {
+        List<int[]> paths = new ArrayList<>();
+        for (Unit.UnitView footman : view.getUnits(0)) {
+            for (Unit.UnitView archer : view.getUnits(1)) {
+                paths.add(new int[]{footman.getXPosition(), footman.getYPosition(), archer.getXPosition(), archer.getYPosition()});
+            }
+        }
+        return paths;
+    }
+
+    // warms the operation up for one period, then measures it for another and prints a line
+    private static void run(String map, String benchmark, long period, Operation operation) {
+        repeat(operation, period);
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+        long[] result = repeat(operation, period);
+        long allocated = threads.getThreadAllocatedBytes(thread) - allocatedBefore;
+
+        long ops = result[0];
+        long nodes = result[1];
+        double elapsed = result[2] / 1e9;
+        System.out.printf("%-32s %-22s %14.1f %14s %14d %12.1f%n", map, benchmark, ops / elapsed,
+                nodes == 0 ? "-" : String.format("%.0f", nodes / elapsed), allocated / ops, allocated / elapsed / (1 << 20));
+    }
+
+    // runs the operation until the period is over, at least once, returns {operations, nodes, nanoseconds in run}
+    private static long[] repeat(Operation operation, long period) {
+        long start = System.nanoTime();
+        long ops = 0;
+        long nodes = 0;
+        long timed = 0;
+        do {
+            operation.prepare();
+            long before = System.nanoTime();
+            nodes += operation.run();
+            timed += System.nanoTime() - before;
+            ops++;
+        } while (System.nanoTime() - start < period);
+        return new long[]{ops, nodes, timed};
+    }
+}
@@ -0,0 +1,287 @@
+package edu.cwru.sepia.agent.minimax;
+
+import edu.cwru.sepia.environment.model.state.State;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks the parts of GameState that are kept up to date from move to move against working them
+ * out again, on random games from the opening position of each map:
+ *
+ * utility: the utility kept up to date by makeMove is the one a copy works out from scratch
+ * unmake: unmakeMove puts back the units, key and utility of the state before the move
+ * pack: a state unpacked from pack() has the same key, utility, moves and outcome
+ * map: a second state of the same map shares its MapData and hashes the same
+ * mirror: on a transposable map, the mirror image across the diagonal has the same key and utility
+ * permuted: the state with each side's units listed the other way round has the same key, and its
+ *           moves lead to states with the same keys in the same order, so a stored move fits both
+ * persistent: a persistent table file opened again finds what was stored, one opened for other
+ *             settings starts over
+ *
+ * Each walk plays up to WALK_PLYS random moves, evaluating after about two moves in three so the
+ * stale distances pile up the way they do in a search, then unmakes them all. Random walks hardly
+ * ever kill a footman, so a fifth as many kill walks follow: the footmen close in without attacking
+ * and the archers attack whenever they can, evaluating after every move, until a footman dies and
+ * AFTER_KILL_PLYS more random moves have been played. The walks are seeded, so a mismatch can be
+ * played again. It prints the count of each check and the first mismatches of
+ * each, and exits with status 1 if there was one.
+ *
+ * Usage: ConsistencyCheck [walks per map] [map xml ...]
+ * e.g. java -cp lib/Sepia.jar:<compiled classes> edu.cwru.sepia.agent.minimax.ConsistencyCheck 500
+ */
+public class ConsistencyCheck {
+
+    private static final String[] DEFAULT_MAPS = {
+            "data/Game2fv1a_Obstacles.xml", "data/Game2fv2a.xml", "data/Game2fv2a_Obstacles.xml"};
+    private static final int WALK_PLYS = 40;
+    private static final int KILL_PLYS = 1000; // a kill walk that hasn't killed by then gives up
+    private static final int AFTER_KILL_PLYS = 10;
+    private static final int MAX_REPORTED = 10;
+    private static final int PERSISTED_KEYS = 2000;
+
+    private static final String[] CHECKS = {"utility", "unmake", "pack", "map", "mirror", "permuted", "persistent"};
+    private static final long[] checked = new long[CHECKS.length];
+    private static final long[] failed = new long[CHECKS.length];
+
+    public static void main(String[] args) throws Exception {
+        int walks = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        String[] maps = args.length > 1 ? Arrays.copyOfRange(args, 1, args.length) : DEFAULT_MAPS;
+        Random random = new Random(1);
+
+        for (String map : maps) {
+            String name = map.substring(map.lastIndexOf('/') + 1);
+            State.StateView view = MapLoader.load(map, 0);
+            GameState root = new GameState(view);
+            GameState other = root.copy(); // unpacked into, so it's a different object with the same map
+
+            GameState second = new GameState(view);
+            check(3, name, "second state of the map", second.walls == root.walls && second.zobrist == root.zobrist
+                    && second.distances == root.distances && second.clusters == root.clusters
+                    && second.getZobristKey() == root.getZobristKey() && second.getUtility() == root.getUtility());
+            if (!root.transposable) {
+                System.out.println(name + ": not transposable, no mirror checks");
+            }
+
+            List<Long> visited = new ArrayList<>();
+            for (int walk = 0; walk < walks; walk++) {
+                Deque<PackedState> before = new ArrayDeque<>();
+                Deque<Long> keys = new ArrayDeque<>();
+                Deque<Double> utilities = new ArrayDeque<>();
+                String where = name + " walk " + walk;
+                int made = 0;
+                while (made < WALK_PLYS && root.getOutcome() == 0) {
+                    long[] moves = root.getMoves();
+                    if (moves.length == 0) {
+                        break;
+                    }
+                    checkPack(root, other, where + " ply " + made);
+                    if (root.transposable) {
+                        checkMirror(root, other, where + " ply " + made);
+                    }
+                    checkPermuted(root, other, where + " ply " + made);
+                    before.push(root.pack());
+                    keys.push(root.getZobristKey());
+                    if (visited.size() < PERSISTED_KEYS) {
+                        visited.add(keys.peek());
+                    }
+                    utilities.push(root.getUtility());
+
+                    root.makeMove(moves[random.nextInt(moves.length)]);
+                    made++;
+                    if (random.nextInt(3) != 0) {
+                        GameState fresh = root.copy();
+                        fresh.forgetUtility();
+                        double incremental = root.getUtility();
+                        check(0, where + " ply " + made, incremental + " kept, " + fresh.getUtility() + " from scratch",
+                                incremental == fresh.getUtility());
+                    }
+                }
+                for (; made > 0; made--) {
+                    root.unmakeMove();
+                    double utility = root.getUtility();
+                    long key = root.getZobristKey();
+                    check(1, where + " unmaking ply " + made, "utility " + utility + " instead of " + utilities.peek(),
+                            root.pack().equals(before.pop()) & key == keys.pop() & utility == utilities.pop());
+                }
+            }
+            int kills = 0;
+            for (int walk = 0; walk < Math.max(1, walks / 5); walk++) {
+                kills += killWalk(root, random, name + " kill walk " + walk);
+            }
+            System.out.println(name + ": " + kills + " footmen killed in kill walks");
+            checkPersistent(view, visited, name);
+        }
+
+        boolean passed = true;
+        for (int i = 0; i < CHECKS.length; i++) {
+            System.out.printf("%-10s %10d checks %6d mismatches%n", CHECKS[i], checked[i], failed[i]);
+            passed &= failed[i] == 0;
+        }
+        if (!passed) {
+            System.exit(1);
+        }
+    }
+
+    // plays a kill walk on the state, checking the utility after every move, then unmakes it. Returns 1 if a footman died
+    private static int killWalk(GameState state, Random random, String where) {
+        int footmen = state.footmen.size();
+        int living = living(state, footmen);
+        int made = 0;
+        int after = -1; // plys played since the first footman died
+        Deque<Double> utilities = new ArrayDeque<>();
+        while (made < KILL_PLYS && after < AFTER_KILL_PLYS && state.getOutcome() == 0) {
+            long[] moves = after >= 0 ? state.getMoves() : killWalkMoves(state);
+            if (moves.length == 0) {
+                break;
+            }
+            utilities.push(state.getUtility());
+            state.makeMove(moves[random.nextInt(moves.length)]);
+            made++;
+            GameState fresh = state.copy();
+            fresh.forgetUtility();
+            double incremental = state.getUtility();
+            check(0, where + " ply " + made, incremental + " kept, " + fresh.getUtility() + " from scratch",
+                    incremental == fresh.getUtility());
+            if (after >= 0) {
+                after++;
+            } else if (living(state, footmen) < living) {
+                after = 0;
+            }
+        }
+        for (; made > 0; made--) {
+            state.unmakeMove();
+            double utility = state.getUtility();
+            check(1, where + " unmaking ply " + made, "utility " + utility + " instead of " + utilities.peek(),
+                    utility == utilities.pop());
+        }
+        return after >= 0 ? 1 : 0;
+    }
+
+    // the footmen's walks that close in the most on the archers, or the archers' attacks if they have any
+    private static long[] killWalkMoves(GameState state) {
+        if (!state.myTurn) {
+            long[] attacks = state.getAttackMoves();
+            return attacks.length > 0 ? attacks : state.getQuietMoves();
+        }
+        long[] quiets = state.getQuietMoves();
+        int best = Integer.MIN_VALUE;
+        int count = 0;
+        for (long move : quiets) {
+            int progress = state.getProgress(move);
+            if (progress > best) {
+                best = progress;
+                count = 0;
+            }
+            if (progress == best) {
+                quiets[count++] = move;
+            }
+        }
+        return Arrays.copyOf(quiets, count);
+    }
+
+    // how many of the first footmen units of a state are alive
+    private static int living(GameState state, int footmen) {
+        PackedState packed = state.pack();
+        int living = 0;
+        for (int i = 0; i < footmen; i++) {
+            living += PackedState.health(packed.unit(i)) > 0 ? 1 : 0;
+        }
+        return living;
+    }
+
+    // unpacks the state into other and compares what the search reads of them
+    private static void checkPack(GameState state, GameState other, String where) {
+        PackedState packed = state.pack();
+        other.unpack(packed);
+        check(2, where, "unpacked state differs", other.getZobristKey() == state.getZobristKey()
+                && other.getUtility() == state.getUtility() && Arrays.equals(other.getMoves(), state.getMoves())
+                && other.getOutcome() == state.getOutcome() && other.pack().equals(packed));
+    }
+
+    // unpacks the state's mirror image across the diagonal into other, which must evaluate the same
+    private static void checkMirror(GameState state, GameState other, String where) {
+        PackedState packed = state.pack();
+        long[] units = new long[packed.unitCount()];
+        for (int i = 0; i < units.length; i++) {
+            long unit = packed.unit(i);
+            int cell = PackedState.cell(unit);
+            int mirrored = cell % state.xExtent * state.xExtent + cell / state.xExtent;
+            units[i] = PackedState.packUnit(mirrored, PackedState.health(unit), PackedState.attacking(unit));
+        }
+        other.unpack(new PackedState(packed.myTurn, units));
+        check(4, where, "mirror image utility " + other.getUtility() + ", " + state.getUtility() + " here",
+                other.getZobristKey() == state.getZobristKey() && other.getUtility() == state.getUtility());
+    }
+
+    // unpacks the state with the footmen and the archers each in reverse order into other, which must order its moves the same
+    private static void checkPermuted(GameState state, GameState other, String where) {
+        PackedState packed = state.pack();
+        int footmen = state.footmen.size();
+        long[] units = new long[packed.unitCount()];
+        for (int i = 0; i < units.length; i++) {
+            units[i] = packed.unit(i < footmen ? footmen - 1 - i : units.length - 1 - (i - footmen));
+        }
+        other.unpack(new PackedState(packed.myTurn, units));
+        long[] moves = state.getMoves();
+        long[] otherMoves = other.getMoves();
+        boolean same = other.getZobristKey() == state.getZobristKey() && moves.length == otherMoves.length;
+        for (int i = 0; same && i < moves.length; i++) {
+            same = childKey(state, moves[i]) == childKey(other, otherMoves[i]);
+        }
+        check(5, where, "moves of the permuted state are in another order", same);
+    }
+
+    private static long childKey(GameState state, long move) {
+        state.makeMove(move);
+        long key = state.getZobristKey();
+        state.unmakeMove();
+        return key;
+    }
+
+    // stores the keys in a persistent table file, then opens the file again and probes them
+    private static void checkPersistent(State.StateView view, List<Long> keys, String name) throws IOException {
+        File file = File.createTempFile("consistency", ".tt");
+        file.deleteOnExit();
+        try {
+            PersistentTranspositionTable written = PersistentTranspositionTable.open(file, 1, view, 0);
+            for (int i = 0; i < keys.size(); i++) {
+                written.store(keys.get(i), 1 + i % 20, i, (byte) (i % 3), i % 100);
+            }
+            written.flush();
+
+            PersistentTranspositionTable reopened = PersistentTranspositionTable.open(file, 1, view, 0);
+            TranspositionTable.Entry stored = new TranspositionTable.Entry();
+            TranspositionTable.Entry read = new TranspositionTable.Entry();
+            for (long key : keys) {
+                boolean found = written.probe(key, -1, stored);
+                check(6, name + " key " + Long.toHexString(key), "reopened file differs",
+                        found == reopened.probe(key, -1, read) && (!found || (stored.value == read.value
+                                && stored.depth == read.depth && stored.bound == read.bound && stored.move == read.move)));
+            }
+
+            //values stored without the tablebase can't be used with it
+            PersistentTranspositionTable other = PersistentTranspositionTable.open(file, 1, view, PersistentTranspositionTable.TABLEBASE);
+            boolean empty = true;
+            for (long key : keys) {
+                empty &= !other.probe(key, -1, read);
+            }
+            check(6, name, "file opened with other flags kept its entries", empty);
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static void check(int kind, String where, String mismatch, boolean passed) {
+        checked[kind]++;
+        if (!passed && ++failed[kind] <= MAX_REPORTED) {
+            System.out.println(CHECKS[kind] + " mismatch, " + where + ": " + mismatch);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package edu.cwru.sepia.agent.minimax;
+
+import java.util.Arrays;
+
+/**
+ * Shortest path lengths between every pair of open cells of a map, moving in the four cardinal
+ * directions around the resource nodes. Obstacles never move, so the table is built once per
+ * map with a breadth first search from every cell and lookups are a single array read.
+ *
+ * Units are not part of the table. GameState checks whether a footman sits on every shortest
+ * path and only then falls back to A*.
+ */
+class DistanceOracle {
+
+    // all-pairs tables stop paying off past this many cells (the table is cells^2 shorts)
+    static final int MAX_TABLE_CELLS = 4096;
+
+    static final int UNREACHABLE = -1;
+
+    private final int xExtent;
+    private final int yExtent;
+    private final boolean[] blocked; // [cell index] true where a resource node is
+    private final short[] distances; // [from cell * cells + to cell], UNREACHABLE if there is no path
+
+    private DistanceOracle(int xExtent, int yExtent, boolean[] blocked) {
+        this.xExtent = xExtent;
+        this.yExtent = yExtent;
+        this.blocked = blocked;
+
+        int cells = xExtent * yExtent;
+        distances = new short[cells * cells];
+        Arrays.fill(distances, (short) UNREACHABLE);
+        int[] queue = new int[cells];
+        for (int from = 0; from < cells; from++) {
+            if (!blocked[from]) {
+                breadthFirstSearch(from, queue);
+            }
+        }
+    }
+
+    /**
+     * Builds the table for a map. MapData keeps the one for each map.
+     *
+     * @param blocked Cells holding a resource node, indexed y * xExtent + x, kept by the table
+     * @return The distance table, or null if the map is too large to tabulate
+     */
+    static DistanceOracle build(int xExtent, int yExtent, boolean[] blocked) {
+        if (xExtent * yExtent > MAX_TABLE_CELLS) {
+            return null;
+        }
+        return new DistanceOracle(xExtent, yExtent, blocked);
+    }
+
+    // about how much memory the table takes
+    long sizeInBytes() {
+        return 2L * distances.length;
+    }
+
+    // fills in the row of the table for one starting cell
+    private void breadthFirstSearch(int from, int[] queue) {
+        int cells = xExtent * yExtent;
+        int row = from * cells;
+        int head = 0;
+        int tail = 0;
+        distances[row + from] = 0;
+        queue[tail++] = from;
+        while (head < tail) {
+            int cell = queue[head++];
+            int x = cell % xExtent;
+            int y = cell / xExtent;
+            short next = (short) (distances[row + cell] + 1);
+            if (x > 0) {
+                tail = visit(row, cell - 1, next, queue, tail);
+            }
+            if (x < xExtent - 1) {
+                tail = visit(row, cell + 1, next, queue, tail);
+            }
+            if (y > 0) {
+                tail = visit(row, cell - xExtent, next, queue, tail);
+            }
+            if (y < yExtent - 1) {
+                tail = visit(row, cell + xExtent, next, queue, tail);
+            }
+        }
+    }
+
+    private int visit(int row, int cell, short distance, int[] queue, int tail) {
+        if (!blocked[cell] && distances[row + cell] == UNREACHABLE) {
+            distances[row + cell] = distance;
+            queue[tail++] = cell;
+        }
+        return tail;
+    }
+
+    /**
+     * @return The number of steps from (x1, y1) to (x2, y2) ignoring units, or UNREACHABLE
+     */
+    int distance(int x1, int y1, int x2, int y2) {
+        return distances[(y1 * xExtent + x1) * xExtent * yExtent + y2 * xExtent + x2];
+    }
+
+    /**
+     * @return Whether (x, y) lies on at least one shortest path from (x1, y1) to (x2, y2)
+     */
+    boolean onShortestPath(int x1, int y1, int x, int y, int x2, int y2) {
+        int toCell = distance(x1, y1, x, y);
+        int fromCell = distance(x, y, x2, y2);
+        return toCell != UNREACHABLE && fromCell != UNREACHABLE && toCell + fromCell == distance(x1, y1, x2, y2);
+    }
+
+    /**
+     * Whether a shortest path from (x1, y1) to (x2, y2) avoids the cell (x, y), which is on one.
+     *
+     * Every shortest path crosses each distance layer from the start exactly once, so one exists
+     * around the cell exactly when some other cell of its layer is also on a shortest path. Only
+     * cells close enough to the start to be in that layer are checked.
+     */
+    boolean hasDetour(int x1, int y1, int x, int y, int x2, int y2) {
+        int total = distance(x1, y1, x2, y2);
+        int layer = distance(x1, y1, x, y);
+        for (int cy = Math.max(0, y1 - layer); cy <= Math.min(yExtent - 1, y1 + layer); cy++) {
+            int reach = layer - Math.abs(cy - y1);
+            for (int cx = Math.max(0, x1 - reach); cx <= Math.min(xExtent - 1, x1 + reach); cx++) {
+                if ((cx != x || cy != y) && distance(x1, y1, cx, cy) == layer && distance(cx, cy, x2, y2) == total - layer) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,207 @@
+package edu.cwru.sepia.agent.minimax;
+
+import edu.cwru.sepia.environment.model.state.ResourceNode;
+import edu.cwru.sepia.environment.model.state.State;
+import edu.cwru.sepia.environment.model.state.Unit;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Exact results for every position with one footman and one archer left on a map, worked out
+ * ahead of time by TablebaseGenerator and memory mapped by the agent, so the search can stop at
+ * such a position instead of searching it.
+ *
+ * A position is whose turn it is, the cell of each unit and how many hits each can still take
+ * (health divided by the other side's GameState damage, rounded up). The rules are GameState's:
+ * units step in GameState.MOVES directions onto cells without a resource or the other unit, the
+ * footman attacks next to the archer and the archer within its range.
+ *
+ * File layout, big endian:
+ *
+ * header: MAGIC, VERSION, xExtent, yExtent, archer range, footman hits, archer hits, footman
+ *         damage, archer damage, hash of the resource cells (ints, then the hash as a long)
+ * entries: a byte per position, indexed by index(), see encode for the values
+ *
+ * Positions are only over the cells without a resource, numbered in row order.
+ */
+class EndgameTablebase {
+
+    static final int UNKNOWN = 0; // neither side can force a win, or the win is too far off for a byte
+
+    static final int MAGIC = 0x53455442; // "SETB"
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 9 * 4 + 8;
+    static final int MAX_PLYS = 254; // the longest result a byte holds
+
+    final int xExtent;
+    final int yExtent;
+    final int range; // the archer's attack range
+    final int footmanHits; // the most hits a footman can take
+    final int archerHits; // the most hits an archer can take
+    final int openCells;
+    final int[] openIndex; // [cell] the number of a cell without a resource, -1 for the rest
+    final int[] openCell; // [number] the cell, y * xExtent + x
+    private final boolean[] blocked;
+    private final ByteBuffer entries; // the mapped file, null while generating
+
+    EndgameTablebase(int xExtent, int yExtent, boolean[] blocked, int range, int footmanHits, int archerHits,
+                     ByteBuffer entries) {
+        this.xExtent = xExtent;
+        this.yExtent = yExtent;
+        this.blocked = blocked;
+        this.range = range;
+        this.footmanHits = footmanHits;
+        this.archerHits = archerHits;
+        this.entries = entries;
+        openIndex = new int[xExtent * yExtent];
+        int open = 0;
+        for (int cell = 0; cell < blocked.length; cell++) {
+            openIndex[cell] = blocked[cell] ? -1 : open++;
+        }
+        openCells = open;
+        openCell = new int[open];
+        for (int cell = 0; cell < blocked.length; cell++) {
+            if (!blocked[cell]) {
+                openCell[openIndex[cell]] = cell;
+            }
+        }
+    }
+
+    /**
+     * @return The number of positions in the table, Long so a too large map can be caught
+     */
+    long entryCount() {
+        return 2L * footmanHits * archerHits * openCells * openCells;
+    }
+
+    /**
+     * @param footmenToMove Whose turn it is
+     * @param footman The footman's cell number, counting only cells without a resource
+     * @param archer The archer's cell number
+     * @param footmanHits Hits the footman can still take, 1 or more
+     * @param archerHits Hits the archer can still take, 1 or more
+     */
+    int index(boolean footmenToMove, int footman, int archer, int footmanHits, int archerHits) {
+        int side = footmenToMove ? 0 : 1;
+        return (((side * this.footmanHits + footmanHits - 1) * this.archerHits + archerHits - 1) * openCells + footman)
+                * openCells + archer;
+    }
+
+    /**
+     * Packs a result into a byte: a win for the side to move in an odd number of plys as half of
+     * that rounded up, a loss in an even number as minus half of it, UNKNOWN as 0.
+     */
+    static byte encode(int plys) {
+        return (byte) (plys > 0 ? (plys + 1) / 2 : plys / 2);
+    }
+
+    static int decode(byte entry) {
+        return entry > 0 ? 2 * entry - 1 : 2 * entry;
+    }
+
+    /**
+     * @return UNKNOWN, or the plys until the game ends with perfect play, positive when the side to
+     *         move wins and negative when it loses
+     */
+    int probe(boolean footmenToMove, int footmanX, int footmanY, int footmanHealth, int archerX, int archerY, int archerHealth) {
+        int footman = openIndex[footmanY * xExtent + footmanX];
+        int archer = openIndex[archerY * xExtent + archerX];
+        int footmanLeft = hits(footmanHealth, GameState.ARCHER_DAMAGE);
+        int archerLeft = hits(archerHealth, GameState.FOOTMAN_DAMAGE);
+        if (footman < 0 || archer < 0 || footmanLeft < 1 || footmanLeft > footmanHits || archerLeft < 1 || archerLeft > archerHits) {
+            return UNKNOWN;
+        }
+        return decode(entries.get(HEADER_BYTES + index(footmenToMove, footman, archer, footmanLeft, archerLeft)));
+    }
+
+    // how many attacks of the given damage it takes to kill a unit with this much health
+    static int hits(int health, int damage) {
+        return (health + damage - 1) / damage;
+    }
+
+    /**
+     * @return The resource cells of a map, indexed y * xExtent + x
+     */
+    static boolean[] blockedCells(State.StateView state) {
+        boolean[] blocked = new boolean[state.getXExtent() * state.getYExtent()];
+        for (ResourceNode.ResourceView resource : state.getAllResourceNodes()) {
+            blocked[resource.getYPosition() * state.getXExtent() + resource.getXPosition()] = true;
+        }
+        return blocked;
+    }
+
+    // hash of the resource cells, so a table is never used on a different map of the same size
+    static long mapHash(boolean[] blocked) {
+        long hash = 1125899906842597L;
+        for (boolean cell : blocked) {
+            hash = 31 * hash + (cell ? 1 : 0);
+        }
+        return hash;
+    }
+
+    void writeHeader(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(xExtent);
+        out.writeInt(yExtent);
+        out.writeInt(range);
+        out.writeInt(footmanHits);
+        out.writeInt(archerHits);
+        out.writeInt(GameState.FOOTMAN_DAMAGE);
+        out.writeInt(GameState.ARCHER_DAMAGE);
+        out.writeLong(mapHash(blocked));
+    }
+
+    /**
+     * Maps a table file into memory after checking it was built for this map, its archers' range
+     * and the damage GameState assumes.
+     *
+     * @param state The first state of the episode
+     * @return The table, or null with the reason printed if it doesn't fit the map
+     */
+    static EndgameTablebase open(File file, State.StateView state) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            ByteBuffer entries = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            boolean[] blocked = MapData.forMap(state).blocked;
+            if (entries.limit() < HEADER_BYTES || entries.getInt(0) != MAGIC || entries.getInt(4) != VERSION) {
+                System.err.println(file + " is not an endgame tablebase");
+                return null;
+            }
+            int range = entries.getInt(16);
+            if (entries.getInt(8) != state.getXExtent() || entries.getInt(12) != state.getYExtent()
+                    || entries.getLong(36) != mapHash(blocked)) {
+                System.err.println(file + " was built for a different map, not using it");
+                return null;
+            }
+            if (entries.getInt(28) != GameState.FOOTMAN_DAMAGE || entries.getInt(32) != GameState.ARCHER_DAMAGE) {
+                System.err.println(file + " was built for different attack damage, not using it");
+                return null;
+            }
+            for (Unit.UnitView archer : state.getUnits(1)) {
+                if (archer.getTemplateView().getRange() != range) {
+                    System.err.println(file + " was built for archers with range " + range + ", not using it");
+                    return null;
+                }
+            }
+            EndgameTablebase tablebase = new EndgameTablebase(state.getXExtent(), state.getYExtent(), blocked, range,
+                    entries.getInt(20), entries.getInt(24), entries);
+            if (entries.limit() != HEADER_BYTES + tablebase.entryCount()) {
+                System.err.println(file + " is truncated, not using it");
+                return null;
+            }
+            //the mapping stays valid after the channel is closed
+            return tablebase;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Endgame tablebase " + xExtent + "x" + yExtent + ", " + footmanHits + " footman hits by "
+                + archerHits + " archer hits, " + entryCount() + " positions";
+    }
+}
@@ -6,7 +6,6 @@ import edu.cwru.sepia.action.Action;
 import edu.cwru.sepia.action.ActionType;
 import edu.cwru.sepia.action.DirectedAction;
 import edu.cwru.sepia.action.TargetedAction;
-import edu.cwru.sepia.environment.model.state.ResourceNode;
 import edu.cwru.sepia.environment.model.state.State;
 import edu.cwru.sepia.environment.model.state.Unit;
 import edu.cwru.sepia.util.Direction;
@@ -24,15 +23,78 @@ import java.util.*;
  */
 public class GameState {
 
+    // the directions units may move in, in Direction.values() order. Northwest has always been let
+    // through along with the cardinal directions, and the utility was tuned with it
+    static final Direction[] MOVES = {Direction.NORTH, Direction.EAST, Direction.SOUTH, Direction.WEST, Direction.NORTHWEST};
+
+    // the damage every attack is assumed to do, SEPIA's is random
+    static final int FOOTMAN_DAMAGE = 10;
+    static final int ARCHER_DAMAGE = 6;
+
+    // sides with more units than this drop the steps that lose ground against every enemy before the
+    // joint moves are formed. Two a side is what the utility was tuned on, so those keep every step.
+    private static final int PRUNE_ABOVE_UNITS = 2;
+
+    // The search passes moves around as a long with a byte per unit of the side moving, at the
+    // unit's index: 0 for a unit with no action, 1 + i for a step in MOVES[i] and ATTACK_CODE + j for
+    // attacking the enemy at index j. getActions turns one into the unit actions SEPIA takes.
+    static final int MAX_UNITS = 8; // units a side can have, one byte each
+    static final int ATTACK_CODE = 1 + MOVES.length;
+
+    // where each unit's values are in units, from its StateUnit.offset
+    private static final int X = 0;
+    private static final int Y = 1;
+    private static final int HEALTH = 2;
+    private static final int ATTACKING = 3;
+    private static final int UNIT_INTS = 4;
+
     boolean myTurn = true; // keeps track of whose turn it is
-    Double utility = null; // for caching the utility value
-    List<StateUnit> footmen = new ArrayList<StateUnit>(); //list of footmen on the map
-    List<Integer> bestDistance = new ArrayList<>(); // the best distance to an archer for each footman
-    List<StateUnit> archers = new ArrayList<StateUnit>(); // list of all archers
-    List<Position> resources = new ArrayList<Position>(); // all resources that we can't be on top of
+    double utility; // for caching the utility value
+    boolean utilityKnown = false; // whether utility holds the value for the current units
+    List<StateUnit> footmen; //list of footmen on the map, shared by every copy
+    int[] bestDistance; // [footman] the best distance to a living archer
+    boolean distanceKnown = false; // whether bestDistance matches the current positions
+    int[] pairDistance; // [footman * allArchers.size() + archer] path length between the two, kept from the parent where the move didn't touch it
+    boolean pairsStale = true; // every pair is out of date
+    long staleFootmen = 0; // bit per footman that moved since pairDistance was worked out
+    long staleArchers = 0; // bit per allArchers index the same way
+    long blockedPairs = 0; // bit per pair that had another footman on a shortest path, so any footman moving can change it
+    int attackingFootmen = 0; // footmen that attacked to reach this state, the utility's attack feature
+    long distanceTotal = 0; // the sum of bestDistance, the utility's distance feature
+    List<StateUnit> archers = new ArrayList<StateUnit>(); // list of living archers
+    List<StateUnit> allArchers; // every archer including dead ones, so unmakeMove can revive them, shared by every copy
+    // x, y, health and attacking (1 or 0) of every unit, UNIT_INTS each, footmen then allArchers. It's
+    // all a move changes about the units, so copy clones it, equals compares it and undo saves it whole
+    int[] units;
     int xExtent; //ends of the map
     int yExtent;
-    State.StateView oldState; // the original state to create more states with
+    int stride; // cells per row of the bitsets, the map plus a border column on each side
+    long[] walls; // bit per cell set for the resources and the border around the map, shared since it never changes
+    long[] footmanCells; // bit per cell set where a footman stands, kept in step with the units as they move
+    long[] archerCells; // the same for the living archers
+    Action[][] footmanActions; // [footman][action code] every action a footman can take, made once and shared by every copy
+    Action[][] archerActions; // [allArchers index][action code] the same for the archers
+    ZobristKeys zobrist; // keys for hashing this state into the transposition table
+    boolean transposable; // the map is square and the same with x and y swapped, see getZobristKey
+    private boolean keyMirrored; // the last getZobristKey was the mirror image's hash, see isKeyMirrored
+    DistanceOracle distances; // precomputed path lengths around the resources, null on maps too big to tabulate
+    HierarchicalPathFinder clusters; // abstract path graph for the maps too big for the distance table, otherwise null
+    SearchStats stats; // the turn's counters while the search is instrumented, otherwise null
+
+    // makeMove saves everything a move can change here so unmakeMove can put it back. One frame per
+    // move made: turn, utilityKnown, distanceKnown, then units as it is,
+    // then the best distance of every footman, the pair distances, pairsStale, staleFootmen,
+    // staleArchers, blockedPairs, attackingFootmen and distanceTotal. The utility goes in its own stack.
+    private int[] undo = new int[0];
+    private double[] undoUtility = new double[0];
+    private int undoDepth = 0;
+
+    // the moves generateMoves has found so far and join's moveSignature of each, to find the ones leading to the same state
+    private long[] generated;
+    private long[] signatures;
+
+    // whether the last getPathLength found a footman on a shortest path, so its answer depends on where the footmen are
+    private boolean pathBlocked;
 
     /**
      * You will implement this constructor. It will
@@ -57,60 +119,304 @@ public class GameState {
      */
     public GameState(State.StateView state) {
 
-        //initialize all footmen and set their damage to an average
+        //initialize all footmen and archers and set their damage to an average
         List<Unit.UnitView> origFootmen = state.getUnits(0);
-        for (Unit.UnitView footman: origFootmen) {
-            footmen.add(new StateUnit(footman));
+        List<Unit.UnitView> origArchers = state.getUnits(1);
+        if (origFootmen.size() > MAX_UNITS || origArchers.size() > MAX_UNITS) {
+            throw new IllegalArgumentException("A move only has room for " + MAX_UNITS + " units a side");
         }
-        for (StateUnit footman: footmen) {
-            footman.damage = 10;
+        units = new int[UNIT_INTS * (origFootmen.size() + origArchers.size())];
+        footmen = new ArrayList<StateUnit>(origFootmen.size());
+        allArchers = new ArrayList<StateUnit>(origArchers.size());
+        for (Unit.UnitView footman: origFootmen) {
+            footmen.add(newUnit(footman, footmen.size(), footmen.size(), FOOTMAN_DAMAGE));
         }
-
-        //initialize all archers and set their damage to an average
-        List<Unit.UnitView> origArchers = state.getUnits(1);
         for (Unit.UnitView archer: origArchers) {
-            archers.add(new StateUnit(archer));
+            allArchers.add(newUnit(archer, allArchers.size(), footmen.size() + allArchers.size(), ARCHER_DAMAGE));
         }
-        for (StateUnit archer: archers) {
-            archer.damage = 6;
+        archers.addAll(allArchers);
+        footmanActions = internActions(footmen, allArchers);
+        archerActions = internActions(allArchers, footmen);
+        bestDistance = new int[footmen.size()];
+        pairDistance = new int[footmen.size() * allArchers.size()];
+
+        //everything about the resources on the map is worked out once per map and shared, see MapData
+        MapData map = MapData.forMap(state);
+        xExtent = map.xExtent;
+        yExtent = map.yExtent;
+        stride = map.stride;
+        walls = map.walls;
+        footmanCells = new long[walls.length];
+        archerCells = new long[walls.length];
+        markUnits(true);
+
+        zobrist = map.zobrist;
+        distances = map.distances;
+        clusters = map.clusters;
+        transposable = map.transposable;
+    }
+
+    // a unit of the episode's first state, the slot-th in units
+    private StateUnit newUnit(Unit.UnitView realUnit, int index, int slot, int damage) {
+        StateUnit unit = new StateUnit(realUnit.getID(), index, UNIT_INTS * slot, realUnit.getTemplateView().getRange(), damage);
+        units[unit.offset + X] = realUnit.getXPosition();
+        units[unit.offset + Y] = realUnit.getYPosition();
+        units[unit.offset + HEALTH] = realUnit.getHP();
+        return unit;
+    }
+
+    // every action each unit can take indexed by its action code, so moves need no new Action objects
+    private static Action[][] internActions(List<StateUnit> units, List<StateUnit> enemies) {
+        Action[][] actions = new Action[units.size()][ATTACK_CODE + enemies.size()];
+        for (StateUnit unit : units) {
+            for (int i = 0; i < MOVES.length; i++) {
+                actions[unit.index][1 + i] = new DirectedAction(unit.ID, ActionType.PRIMITIVEMOVE, MOVES[i]);
+            }
+            for (StateUnit enemy : enemies) {
+                actions[unit.index][ATTACK_CODE + enemy.index] = new TargetedAction(unit.ID, ActionType.PRIMITIVEATTACK, enemy.ID);
+            }
         }
+        return actions;
+    }
 
-        //generate info about all the resources on the map
-        List<ResourceNode.ResourceView> origNodes = state.getAllResourceNodes();
-        for (ResourceNode.ResourceView resource: origNodes) {
-            resources.add(new Position(resource));
+    // copies the units of another state. The map information and the units' StateUnits are shared since they never change
+    private GameState(GameState other) {
+        myTurn = other.myTurn;
+        utility = other.utility;
+        utilityKnown = other.utilityKnown;
+        distanceKnown = other.distanceKnown;
+        bestDistance = other.bestDistance.clone();
+        pairDistance = other.pairDistance.clone();
+        pairsStale = other.pairsStale;
+        staleFootmen = other.staleFootmen;
+        staleArchers = other.staleArchers;
+        blockedPairs = other.blockedPairs;
+        attackingFootmen = other.attackingFootmen;
+        distanceTotal = other.distanceTotal;
+        footmen = other.footmen;
+        allArchers = other.allArchers;
+        archers.addAll(other.archers);
+        units = other.units.clone();
+        xExtent = other.xExtent;
+        yExtent = other.yExtent;
+        stride = other.stride;
+        walls = other.walls;
+        footmanCells = other.footmanCells.clone();
+        archerCells = other.archerCells.clone();
+        footmanActions = other.footmanActions;
+        archerActions = other.archerActions;
+        zobrist = other.zobrist;
+        transposable = other.transposable;
+        distances = other.distances;
+        clusters = other.clusters;
+        stats = other.stats;
+    }
+
+    /**
+     * @return A state with the same units that can be changed without affecting this one
+     */
+    public GameState copy() {
+        return new GameState(this);
+    }
+
+    /**
+     * Equal when it is the same side's turn and every unit stands on the same cell with the same
+     * health and attacking flag, whatever moves led there. Only states of the same turn, which have
+     * the same units, should be compared.
+     */
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
         }
+        if (!(other instanceof GameState)) {
+            return false;
+        }
+        GameState state = (GameState) other;
+        return myTurn == state.myTurn && Arrays.equals(units, state.units);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Arrays.hashCode(units) + (myTurn ? 1 : 0);
+    }
 
-        xExtent = state.getXExtent();
-        yExtent = state.getYExtent();
-        oldState = state;
+    /**
+     * @return The units and turn of this state, for keeping it without keeping a GameState
+     */
+    PackedState pack() {
+        long[] packed = new long[units.length / UNIT_INTS];
+        for (int i = 0; i < packed.length; i++) {
+            int offset = UNIT_INTS * i;
+            packed[i] = PackedState.packUnit(units[offset + Y] * xExtent + units[offset + X], units[offset + HEALTH],
+                    units[offset + ATTACKING] != 0);
+        }
+        return new PackedState(myTurn, packed);
+    }
 
+    /**
+     * Puts this state in the position of a packed one, throwing away any moves made on it. The
+     * packed state has to come from a state of the same turn, so the units are the same, and the
+     * utility and distances are worked out again from scratch.
+     */
+    void unpack(PackedState packed) {
+        markUnits(false);
+        for (int i = 0; i < packed.unitCount(); i++) {
+            long unit = packed.unit(i);
+            int offset = UNIT_INTS * i;
+            units[offset + X] = PackedState.cell(unit) % xExtent;
+            units[offset + Y] = PackedState.cell(unit) / xExtent;
+            units[offset + HEALTH] = PackedState.health(unit);
+            units[offset + ATTACKING] = PackedState.attacking(unit) ? 1 : 0;
+        }
+        myTurn = packed.myTurn;
+        //only the side that moved last can be attacking, so this is the count applyMove left
+        attackingFootmen = 0;
+        for (StateUnit footman : footmen) {
+            if (isAttacking(footman)) {
+                attackingFootmen++;
+            }
+        }
+        removeDeadUnits(this);
+        markUnits(true);
+        undoDepth = 0;
+        forgetUtility();
+    }
 
+    /**
+     * Hash of everything the search and the utility depend on: the cell, health and attacking flag
+     * of every living unit, and whose turn it is. Equal states reached through different move
+     * orders get the same key, and so do states that only differ by which footman or archer is
+     * where, since units of a side are interchangeable. generateMoves goes through the units in
+     * the order of their cells, so those states also list their moves in the same order and a best
+     * move stored under the key is the same move in each of them.
+     *
+     * On a transposable map a state and its mirror image across the diagonal play the same too, so
+     * the key is the smaller of the two states' hashes. They only evaluate the same because path
+     * lengths on those maps come from PathFinder.shortestPathLength, which doesn't care which way
+     * round the map is, rather than the A* that breaks ties west, east, north, south.
+     *
+     * @return The Zobrist hash of this state
+     */
+    public long getZobristKey() {
+        long key = myTurn ? 0 : zobrist.archerTurn;
+        long mirrored = key;
+        for (StateUnit footman : footmen) {
+            key ^= zobrist.unitKey(true, x(footman), y(footman), health(footman), isAttacking(footman));
+            if (transposable) {
+                mirrored ^= zobrist.unitKey(true, y(footman), x(footman), health(footman), isAttacking(footman));
+            }
+        }
+        for (StateUnit archer : archers) {
+            key ^= zobrist.unitKey(false, x(archer), y(archer), health(archer), isAttacking(archer));
+            if (transposable) {
+                mirrored ^= zobrist.unitKey(false, y(archer), x(archer), health(archer), isAttacking(archer));
+            }
+        }
+        keyMirrored = transposable && mirrored < key;
+        return keyMirrored ? mirrored : key;
+    }
 
+    /**
+     * Whether the last getZobristKey was the hash of this state's mirror image. Moves stored under
+     * such a key are the mirror image's getChildren indices, not this state's, so they can't be
+     * stored or used as this state's best move.
+     */
+    boolean isKeyMirrored() {
+        return keyMirrored;
+    }
 
+    // throws away the utility and every distance so the next getUtility works them all out, for timing it
+    void forgetUtility() {
+        utilityKnown = false;
+        distanceKnown = false;
+        pairsStale = true;
     }
 
-    // removes dead units for future states when a unit dies during their generation
+    // removes dead archers for future states when a unit dies during their generation. Footmen
+    // are kept so losing one never looks like shedding its distance penalty to the utility.
     public static void removeDeadUnits(GameState state) {
-        ArrayList<StateUnit> deadGuys = new ArrayList<>();
-        for (StateUnit archer: state.archers) {
-            if (archer.isDead()) {
-                deadGuys.add(archer);
+        state.archers.clear();
+        for (StateUnit archer: state.allArchers) {
+            if (!state.isDead(archer)) {
+                state.archers.add(archer);
             }
         }
-        for (StateUnit unit: deadGuys) {
-            state.archers.remove(unit);
+    }
+
+    /**
+     * @return 1 if every archer is dead, -1 if every footman is, otherwise 0 while the game goes on
+     */
+    public int getOutcome() {
+        if (archers.isEmpty()) {
+            return 1;
+        }
+        for (StateUnit footman : footmen) {
+            if (!isDead(footman)) {
+                return 0;
+            }
         }
+        return -1;
+    }
 
-        deadGuys = new ArrayList<>();
-        for (StateUnit footman: state.footmen) {
-            if (footman.isDead()) {
-                deadGuys.remove(footman);
+    /**
+     * How close the footmen are to winning, for scoring Monte Carlo playouts where the utility's
+     * bonus for attacking would make every playout that reaches an archer look the same: minus
+     * the archers' health, less a point for every step between each living footman and its
+     * nearest archer. Like the utility it leaves out the footmen's own health, they have more than
+     * enough to trade for getting to the archers.
+     *
+     * @return The score, higher is better for the footmen
+     */
+    public double getPlayoutScore() {
+        if (!distanceKnown) {
+            updateBestDistance();
+        }
+        double score = 0;
+        for (int i = 0; i < footmen.size(); i++) {
+            if (!isDead(footmen.get(i)) && bestDistance[i] != Integer.MAX_VALUE) {
+                score -= bestDistance[i];
             }
         }
-        for (StateUnit unit: deadGuys) {
-            state.footmen.remove(unit);
+        for (StateUnit archer : allArchers) {
+            score -= Math.max(health(archer), 0);
+        }
+        return score;
+    }
+
+    /**
+     * Looks the position up in an endgame tablebase if it is down to one footman and one archer.
+     * Dead units are left out on both sides the same way, the way SEPIA removes them: a dead
+     * footman is still in footmen and a dead archer in allArchers, but neither moves, blocks a
+     * cell or can be attacked, so the position plays like the tablebase's two unit one.
+     *
+     * The tablebase only has positions with one unit a side, see TablebaseGenerator for why.
+     *
+     * @return EndgameTablebase.UNKNOWN, or the plys until the game ends with perfect play from
+     *         here, positive when the side to move wins and negative when it loses
+     */
+    int probeEndgame(EndgameTablebase tablebase) {
+        StateUnit footman = onlyLiving(footmen);
+        StateUnit archer = onlyLiving(allArchers);
+        if (footman == null || archer == null) {
+            return EndgameTablebase.UNKNOWN;
+        }
+        return tablebase.probe(myTurn, x(footman), y(footman), health(footman),
+                x(archer), y(archer), health(archer));
+    }
+
+    // the one living unit of a side, or null if none or more than one is alive
+    private StateUnit onlyLiving(List<StateUnit> side) {
+        StateUnit living = null;
+        for (StateUnit unit : side) {
+            if (!isDead(unit)) {
+                if (living != null) {
+                    return null;
+                }
+                living = unit;
+            }
         }
+        return living;
     }
 
     /**
@@ -132,51 +438,26 @@ public class GameState {
      * @return The weighted linear combination of the features
      */
     public double getUtility() {
-        if (this.utility != null) {
+        if (utilityKnown) {
             return this.utility;
         }
+        long start = stats != null ? System.nanoTime() : 0;
         // generate distances from each footman to closest target
-        if (bestDistance.size() == 0) {
-            for (int i = 0; i < footmen.size(); i++) {
-                int distance = Integer.MAX_VALUE;
-                for (StateUnit archer : archers) {
-                    int testDist = getAStarPathLength(footmen.get(i).position, archer.position, xExtent, yExtent);
-                    if (testDist < distance) {
-                        distance = testDist;
-                    }
-                }
-                bestDistance.add(distance);
-                //System.out.println("Distance = " + distance);
-            }
+        if (!distanceKnown) {
+            updateBestDistance();
         }
 
-        double utility = 0.0;
-
         //prioritize states where footmen are attacking
         //deprirtitize states where the footman moves away from the archer according to A*
-        for(int i = 0; i < footmen.size(); i++) {
-            StateUnit unit = footmen.get(i);
-            if(unit.attacking) {
-                utility += 5000;
-            }
-            //Distance
-            utility -= bestDistance.get(i);
-            //health
-            //utility+=unit.health;
-        }
-
-        for(StateUnit unit: archers) {
-            if (unit.attacking) {
-               //utility  -= 2;
-            }
-
-            //health
-           // utility -= unit.health;
-        }
-
-        //utility += 600*(2 - archers.size());
+        //Both features are kept up to date as moves are made, see applyMove and updateBestDistance.
+        //The footmen's and archers' health, archers attacking and 600 per dead archer were tried and left out.
+        double utility = 5000.0 * attackingFootmen - distanceTotal;
 
         this.utility = utility;
+        this.utilityKnown = true;
+        if (stats != null) {
+            stats.utilityTime.add(System.nanoTime() - start);
+        }
         return utility;
     }
 
@@ -197,807 +478,672 @@ public class GameState {
      * @return All possible actions and their associated resulting game state
      */
     public List<GameStateChild> getChildren() {
-        ArrayList<GameStateChild> children = new ArrayList<GameStateChild>();
-        // generate archer movement nodes or footmen movement nodes depending on whose turn it is
-        if (myTurn) {
-            generateFootmenChildren(children);
-        } else {
-            generateArcherChildren(children);
+        long[] moves = getMoves();
+        ArrayList<GameStateChild> children = new ArrayList<GameStateChild>(moves.length);
+        for (long move : moves) {
+            children.add(new GameStateChild(getActions(move), getChild(move)));
         }
         return children;
     }
 
-    // determines whether or not a node is on the map
-    private boolean isInMap(int x, int y) {
-        if (x >= 0 && x < xExtent){
-            if (y >= 0 && y < yExtent) {
-                return true;
-            }
-        }
-        return false;
+    /**
+     * @param move A move from getMoves
+     * @return A copy of this state with the move played on it
+     */
+    GameState getChild(long move) {
+        GameState child = copy();
+        child.applyMove(move);
+        return child;
     }
 
-    //determines whether or not the given node has a resource on it.
-    private boolean notOnResourceNode(int x, int y) {
-        for (Position resource: resources) {
-            if (x == resource.x && y == resource.y) {
-                return false;
+    /**
+     * Turns a move into the unit actions SEPIA takes. Only the moves that get played or end up in
+     * a GameStateChild need this, the search works with the long. The actions are shared by every
+     * state of the turn.
+     *
+     * @param move A move from this state's getMoves
+     * @return A map from unit ID to that unit's action
+     */
+    public Map<Integer, Action> getActions(long move) {
+        Action[][] actions = myTurn ? footmanActions : archerActions;
+        Map<Integer, Action> map = new HashMap<Integer, Action>();
+        for (int i = 0; i < actions.length; i++) {
+            int code = actionCode(move, i);
+            if (code != 0) {
+                map.put(actions[i][code].getUnitId(), actions[i][code]);
             }
         }
-        return true;
+        return map;
     }
 
-    //determines if the given x and y values represent the same node on the map
-    private boolean notTheSameMove(int x1, int x2, int y1, int y2) {
-        return (x1 != x2 && y1 != y2);
+    // the action code of the unit at the given index in a move
+    static int actionCode(long move, int index) {
+        return (int) (move >>> (8 * index)) & 0xFF;
     }
 
-    //determines if the given coordinates are where an archer is
-    private boolean onTopOfArcher(int x, int y) {
-        for (StateUnit archer: archers) {
-            if (x == archer.getXPosition() && y == archer.getYPosition()) {
-                return true;
+    // how many units attack in a move
+    static int attackCount(long move) {
+        int count = 0;
+        for (; move != 0; move >>>= 8) {
+            if ((move & 0xFF) >= ATTACK_CODE) {
+                count++;
             }
         }
-        return false;
+        return count;
     }
 
-    //updates the units in a child state to their positions and health of this state.
-    private void updateChildState(GameState newState) {
-        newState.myTurn = !myTurn;
+    /**
+     * All legal joint actions for whoever's turn it is, in the same order as getChildren: every
+     * move with an attack in it first, then the moves where every unit walks. The search uses these
+     * with makeMove and unmakeMove so it never has to copy a state.
+     *
+     * @return Every possible move, see MAX_UNITS for what is in one
+     */
+    public long[] getMoves() {
+        long[] attacks = getAttackMoves();
+        long[] quiets = getQuietMoves();
+        long[] moves = Arrays.copyOf(attacks, attacks.length + quiets.length);
+        System.arraycopy(quiets, 0, moves, attacks.length, quiets.length);
+        return moves;
+    }
 
-        StateUnit footman1 = footmen.get(0);
-        StateUnit otherFootman1 = newState.footmen.get(0);
-        otherFootman1.health = footman1.health;
-        otherFootman1.position = footman1.position.copy();
+    /**
+     * The first part of getMoves, the moves where at least one unit attacks. These are the ones
+     * most likely to cause a cutoff, so the search generates them on their own before the rest.
+     *
+     * @return The attacking moves in getMoves order
+     */
+    public long[] getAttackMoves() {
+        return generateMoves(true);
+    }
 
-        if (footmen.size() == 2) {
-            StateUnit footman2 = footmen.get(1);
-            StateUnit otherFootman2 = newState.footmen.get(1);
-            otherFootman2.health = footman2.health;
-            otherFootman2.position = footman2.position.copy();
-        } else if (newState.footmen.size() == 2) {
-            newState.footmen.remove(1);
-        }
+    /**
+     * The rest of getMoves, the moves where every unit walks.
+     *
+     * @return The non-attacking moves in getMoves order
+     */
+    public long[] getQuietMoves() {
+        return generateMoves(false);
+    }
 
-        StateUnit archer1 = archers.get(0);
-        StateUnit otherArcher1 = newState.archers.get(0);
-        otherArcher1.health = archer1.health;
-        otherArcher1.position = archer1.position.copy();
+    /**
+     * Plays a move from getMoves on this state in place. Every call must be matched by a call to
+     * unmakeMove before the state is used for anything else higher up in the search.
+     *
+     * @param move The move to apply
+     */
+    public void makeMove(long move) {
+        saveUndoFrame();
+        applyMove(move);
+    }
 
-        if (archers.size() == 2) {
-            StateUnit archer2 = archers.get(1);
-            StateUnit otherArcher2 = newState.archers.get(1);
-            otherArcher2.health = archer2.health;
-            otherArcher2.position = archer2.position.copy();
+    /**
+     * Takes back the most recent makeMove, restoring every unit, the turn and the cached values.
+     */
+    public void unmakeMove() {
+        markUnits(false);
+        int frame = --undoDepth * undoFrameSize();
+        int i = frame;
+        myTurn = undo[i++] == 1;
+        utilityKnown = undo[i++] == 1;
+        distanceKnown = undo[i++] == 1;
+        System.arraycopy(undo, i, units, 0, units.length);
+        i += units.length;
+        for (int f = 0; f < bestDistance.length; f++) {
+            bestDistance[f] = undo[i++];
         }
-        else if (newState.archers.size() == 2) {
-            newState.archers.remove(1);
+        for (int pair = 0; pair < pairDistance.length; pair++) {
+            pairDistance[pair] = undo[i++];
         }
+        pairsStale = undo[i++] == 1;
+        staleFootmen = ((long) undo[i++] << 32) | (undo[i++] & 0xFFFFFFFFL);
+        staleArchers = ((long) undo[i++] << 32) | (undo[i++] & 0xFFFFFFFFL);
+        blockedPairs = ((long) undo[i++] << 32) | (undo[i++] & 0xFFFFFFFFL);
+        attackingFootmen = undo[i++];
+        distanceTotal = ((long) undo[i++] << 32) | (undo[i++] & 0xFFFFFFFFL);
+        utility = undoUtility[undoDepth];
+        removeDeadUnits(this);
+        markUnits(true);
+    }
 
-
-
+    private int undoFrameSize() {
+        return 3 + units.length + bestDistance.length + pairDistance.length + 10;
     }
 
-    // assigns values of bestDistance for each footman
-    private void updateChildDistance(GameState newState) {
+    private void saveUndoFrame() {
+        int size = undoFrameSize();
+        if ((undoDepth + 1) * size > undo.length) {
+            undo = Arrays.copyOf(undo, Math.max(16 * size, undo.length * 2));
+        }
+        if (undoDepth + 1 > undoUtility.length) {
+            undoUtility = Arrays.copyOf(undoUtility, Math.max(16, undoUtility.length * 2));
+        }
+        int i = undoDepth * size;
+        undo[i++] = myTurn ? 1 : 0;
+        undo[i++] = utilityKnown ? 1 : 0;
+        undo[i++] = distanceKnown ? 1 : 0;
+        System.arraycopy(units, 0, undo, i, units.length);
+        i += units.length;
+        for (int f = 0; f < bestDistance.length; f++) {
+            undo[i++] = bestDistance[f];
+        }
+        for (int pair = 0; pair < pairDistance.length; pair++) {
+            undo[i++] = pairDistance[pair];
+        }
+        undo[i++] = pairsStale ? 1 : 0;
+        undo[i++] = (int) (staleFootmen >>> 32);
+        undo[i++] = (int) staleFootmen;
+        undo[i++] = (int) (staleArchers >>> 32);
+        undo[i++] = (int) staleArchers;
+        undo[i++] = (int) (blockedPairs >>> 32);
+        undo[i++] = (int) blockedPairs;
+        undo[i++] = attackingFootmen;
+        undo[i++] = (int) (distanceTotal >>> 32);
+        undo[i++] = (int) distanceTotal;
+        undoUtility[undoDepth] = utility;
+        undoDepth++;
+    }
 
-        newState.bestDistance.clear();
+    /**
+     * A cheap guess at how good a walking move is for the side making it, for move ordering: the
+     * number of steps it takes the footmen toward their nearest archer, or the archers away from
+     * their nearest footman. Distances ignore the units, so this is a lookup per unit pair.
+     *
+     * @param move A move from getMoves for the side whose turn it is
+     * @return Steps gained, negative when the move loses ground
+     */
+    public int getProgress(long move) {
+        int progress = 0;
+        List<StateUnit> enemies = myTurn ? archers : footmen;
+        //dead units never get an action, see generateMoves
+        for (StateUnit unit : myTurn ? footmen : archers) {
+            int action = actionCode(move, unit.index);
+            if (action != 0 && action < ATTACK_CODE) {
+                Direction direction = MOVES[action - 1];
+                int before = nearest(x(unit), y(unit), enemies);
+                int after = nearest(x(unit) + direction.xComponent(), y(unit) + direction.yComponent(), enemies);
+                progress += myTurn ? before - after : after - before;
+            }
+        }
+        return progress;
+    }
 
-        for(int i = 0; i < newState.footmen.size(); i++) {
-            int distance = Integer.MAX_VALUE;
-            for(StateUnit archer : newState.archers) {
-                int testDist = getAStarPathLength(newState.footmen.get(i).position, archer.position, xExtent, yExtent);
-                if (testDist < distance) {
-                    distance = testDist;
-                }
+    // steps from a cell to the closest of the given units that is alive
+    private int nearest(int x, int y, List<StateUnit> units) {
+        int best = Integer.MAX_VALUE;
+        for (StateUnit unit : units) {
+            if (isDead(unit)) {
+                continue;
             }
-            newState.bestDistance.add(distance);
-            //System.out.println("Distance = " + distance);
+            best = Math.min(best, steps(x, y, unit));
         }
+        return best;
     }
 
-    // creates nodes where footmen have done actions
-    private void generateFootmenChildren(List<GameStateChild> children){
-        //create our known living units
-        StateUnit footman1 = footmen.get(0);
-        StateUnit archer1 = archers.get(0);
+    // steps from a cell to a unit ignoring the other units, around the resources when the distance table has it
+    private int steps(int x, int y, StateUnit unit) {
+        int distance = DistanceOracle.UNREACHABLE;
+        if (distances != null) {
+            distance = distances.distance(x, y, x(unit), y(unit));
+        }
+        if (distance == DistanceOracle.UNREACHABLE) {
+            distance = Math.abs(x - x(unit)) + Math.abs(y - y(unit));
+        }
+        return distance;
+    }
 
-        //generate actions for when 2 footmen are alive
-        if (footmen.size() == 2) {
-            StateUnit footman2 = footmen.get(1);
-            // iterate over all legal movement directions
-            for (Direction direction1 : Direction.values()) {
-                if (direction1.equals(Direction.NORTHEAST) || direction1.equals(Direction.SOUTHEAST) || direction1.equals(Direction.SOUTHWEST) || direction1.equals(Direction.SOUTHEAST)) {
-                    continue;
-                }
-                for (Direction direction2 : Direction.values()) {
-                    if (direction2.equals(Direction.NORTHEAST) || direction2.equals(Direction.SOUTHEAST) || direction2.equals(Direction.SOUTHWEST) || direction2.equals(Direction.SOUTHEAST)) {
-                        continue;
-                    }
-                    int x1 = footman1.getXPosition() + direction1.xComponent();
-                    int y1 = footman1.getYPosition() + direction1.yComponent();
-                    int x2 = footman2.getXPosition() + direction2.xComponent();
-                    int y2 = footman2.getYPosition() + direction2.yComponent();
-                    // check to see if the movement is legal
-                    if (isInMap(x1, y1) && isInMap(x2, y2) && notOnResourceNode(x1, y1) && notOnResourceNode(x2, y2) && !onTopOfArcher(x1, y1) &&!onTopOfArcher(x2, y2) && notTheSameMove(x1, x2, y1, y2)) {
-                        //initialize child state
-                        GameStateChild child = new GameStateChild(oldState);
-                        updateChildState(child.state);
-                        Map<Integer, Action> actionSet = new HashMap<Integer, Action>();
-                        //generate actions and apply them to child state
-                        Action action1 = new DirectedAction(footman1.ID, ActionType.PRIMITIVEMOVE, direction1);
-                        child.state.footmen.get(0).position.x = x1;
-                        child.state.footmen.get(0).position.y = y1;
-                        Action action2 = new DirectedAction(footman2.ID, ActionType.PRIMITIVEMOVE, direction2);
-                        child.state.footmen.get(1).position.x = x2;
-                        child.state.footmen.get(1).position.y = y2;
-                        //now we can calculate the A* distance
-                        updateChildDistance(child.state);
-                        //add actions to actions set and child, and add child to children set
-                        actionSet.put(footman1.ID, action1);
-                        actionSet.put(footman2.ID, action2);
-                        child.action = actionSet;
-                        children.add(child);
-                    }
-                }
+    // moves and attacks with every unit in the move, then hands the turn to the other side. Marks
+    // the pair distances the move touched as out of date and counts the footmen attacking.
+    private void applyMove(long move) {
+        markUnits(false);
+        for (int offset = ATTACKING; offset < units.length; offset += UNIT_INTS) {
+            units[offset] = 0;
+        }
+        attackingFootmen = 0;
+        for (StateUnit unit : myTurn ? footmen : allArchers) {
+            int action = actionCode(move, unit.index);
+            if (action == 0 || isDead(unit)) {
+                continue;
             }
-            // the above actions are repeated for each possible combination of attacking and moving
-            if (footman1.nextTo(archer1)) {
-                for (Direction direction: Direction.values()) {
-                    if (direction.equals(Direction.NORTHEAST) || direction.equals(Direction.SOUTHEAST) || direction.equals(Direction.SOUTHWEST) || direction.equals(Direction.SOUTHEAST)) {
-                        continue;
-                    }
-                    int x = footman2.getXPosition() + direction.xComponent();
-                    int y = footman2.getYPosition() + direction.yComponent();
-                    if (isInMap(x, y) && notOnResourceNode(x, y) && !onTopOfArcher(x, y) && notTheSameMove(x, y, footman1.getXPosition(), footman1.getYPosition())) {
-                        GameStateChild child = new GameStateChild(oldState);
-                        updateChildState(child.state);
-                        Map<Integer, Action> actionSet = new HashMap<Integer, Action>();
-                        Action action1 = new TargetedAction(footman1.ID, ActionType.PRIMITIVEATTACK, archer1.ID);
-                        child.state.footmen.get(0).attacking = true;
-                        child.state.archers.get(0).health -= footman1.damage;
-                        Action action2 = new DirectedAction(footman2.ID, ActionType.PRIMITIVEMOVE, direction);
-                        child.state.footmen.get(1).position.x = x;
-                        child.state.footmen.get(1).position.y = y;
-                        removeDeadUnits(child.state);
-                        updateChildDistance(child.state);
-                        actionSet.put(footman1.ID, action1);
-                        actionSet.put(footman2.ID, action2);
-                        child.action = actionSet;
-                        children.add(child);
-                    }
+            if (action < ATTACK_CODE) {
+                Direction direction = MOVES[action - 1];
+                units[unit.offset + X] += direction.xComponent();
+                units[unit.offset + Y] += direction.yComponent();
+                //the masks only have room for 64 of each, past that everything gets worked out again
+                if (unit.index >= 64 || pairDistance.length > 64) {
+                    pairsStale = true;
+                } else if (myTurn) {
+                    staleFootmen |= 1L << unit.index;
+                } else {
+                    staleArchers |= 1L << unit.index;
                 }
-            }
-            if (footman2.nextTo(archer1)) {
-                for (Direction direction: Direction.values()) {
-                    if (direction.equals(Direction.NORTHEAST) || direction.equals(Direction.SOUTHEAST) || direction.equals(Direction.SOUTHWEST) || direction.equals(Direction.SOUTHEAST)) {
-                        continue;
-                    }
-                    int x = footman1.getXPosition() + direction.xComponent();
-                    int y = footman1.getYPosition() + direction.yComponent();
-                    if (isInMap(x, y) && notOnResourceNode(x, y) && !onTopOfArcher(x, y) && notTheSameMove(x, y, footman2.getXPosition(), footman2.getYPosition())) {
-                        GameStateChild child = new GameStateChild(oldState);
-                        updateChildState(child.state);
-                        Map<Integer, Action> actionSet = new HashMap<Integer, Action>();
-                        Action action1 = new TargetedAction(footman2.ID, ActionType.PRIMITIVEATTACK, archer1.ID);
-                        child.state.footmen.get(1).attacking = true;
-                        child.state.archers.get(0).health -= footman2.damage;
-                        Action action2 = new DirectedAction(footman1.ID, ActionType.PRIMITIVEMOVE, direction);
-                        child.state.footmen.get(0).position.x = x;
-                        child.state.footmen.get(0).position.y = y;
-                        removeDeadUnits(child.state);
-                        updateChildDistance(child.state);
-                        actionSet.put(footman2.ID, action1);
-                        actionSet.put(footman1.ID, action2);
-                        child.action = actionSet;
-                        children.add(child);
-                    }
+            } else {
+                units[unit.offset + ATTACKING] = 1;
+                if (myTurn) {
+                    attackingFootmen++;
                 }
-            }
-            if (footman1.nextTo(archer1) && footman2.nextTo(archer1)) {
-                GameStateChild child = new GameStateChild(oldState);
-                updateChildState(child.state);
-                Map<Integer, Action> actionSet = new HashMap<Integer, Action>();
-                Action action1 = new TargetedAction(footman1.ID, ActionType.PRIMITIVEATTACK, archer1.ID);
-                child.state.footmen.get(0).attacking = true;
-                child.state.archers.get(0).health -= footman1.damage;
-                Action action2 = new TargetedAction(footman2.ID, ActionType.PRIMITIVEATTACK, archer1.ID);
-                child.state.footmen.get(1).attacking = true;
-                child.state.archers.get(0).health -= footman2.damage;
-                removeDeadUnits(child.state);
-                updateChildDistance(child.state);
-                actionSet.put(footman1.ID, action1);
-                actionSet.put(footman2.ID, action2);
-                child.action = actionSet;
-                children.add(child);
-            }
-
-            if (archers.size() == 2) {
-                StateUnit archer2 = archers.get(1);
-                if (footman1.nextTo(archer2)) {
-                    for (Direction direction: Direction.values()) {
-                        if (direction.equals(Direction.NORTHEAST) || direction.equals(Direction.SOUTHEAST) || direction.equals(Direction.SOUTHWEST) || direction.equals(Direction.SOUTHEAST)) {
-                            continue;
-                        }
-                        int x = footman2.getXPosition() + direction.xComponent();
-                        int y = footman2.getYPosition() + direction.yComponent();
-                        if (isInMap(x, y) && notOnResourceNode(x, y) && !onTopOfArcher(x, y) && notTheSameMove(x, y, footman1.getXPosition(), footman1.getYPosition())) {
-                            GameStateChild child = new GameStateChild(oldState);
-                            updateChildState(child.state);
-                            Map<Integer, Action> actionSet = new HashMap<Integer, Action>();
-                            Action action1 = new TargetedAction(footman1.ID, ActionType.PRIMITIVEATTACK, archer2.ID);
-                            child.state.footmen.get(0).attacking = true;
-                            child.state.archers.get(1).health -= footman1.damage;
-                            Action action2 = new DirectedAction(footman2.ID, ActionType.PRIMITIVEMOVE, direction);
-                            child.state.footmen.get(1).position.x = x;
-                            child.state.footmen.get(1).position.y = y;
-                            removeDeadUnits(child.state);
-                            updateChildDistance(child.state);
-                            actionSet.put(footman1.ID, action1);
-                            actionSet.put(footman2.ID, action2);
-                            child.action = actionSet;
-                            children.add(child);
-                        }
+                StateUnit target = target(action);
+                boolean alive = !isDead(target);
+                units[target.offset + HEALTH] -= unit.damage;
+                //a footman dying leaves the board like one stepping off it, the paths it was in the way of open up
+                if (!myTurn && alive && isDead(target)) {
+                    if (target.index >= 64 || pairDistance.length > 64) {
+                        pairsStale = true;
+                    } else {
+                        staleFootmen |= 1L << target.index;
                     }
                 }
-                if (footman2.nextTo(archer2)) {
-                    for (Direction direction: Direction.values()) {
-                        if (direction.equals(Direction.NORTHEAST) || direction.equals(Direction.SOUTHEAST) || direction.equals(Direction.SOUTHWEST) || direction.equals(Direction.SOUTHEAST)) {
-                            continue;
-                        }
-                        int x = footman1.getXPosition() + direction.xComponent();
-                        int y = footman1.getYPosition() + direction.yComponent();
-                        if (isInMap(x, y) && notOnResourceNode(x, y) && !onTopOfArcher(x, y) && notTheSameMove(x, footman2.getXPosition(), y, footman2.getYPosition())) {
-                            GameStateChild child = new GameStateChild(oldState);
-                            updateChildState(child.state);
-                            Map<Integer, Action> actionSet = new HashMap<Integer, Action>();
-                            Action action1 = new TargetedAction(footman2.ID, ActionType.PRIMITIVEATTACK, archer2.ID);
-                            child.state.footmen.get(1).attacking = true;
-                            child.state.archers.get(1).health -= footman2.damage;
-                            Action action2 = new DirectedAction(footman1.ID, ActionType.PRIMITIVEMOVE, direction);
-                            child.state.footmen.get(0).position.x = x;
-                            child.state.footmen.get(0).position.y = y;
-                            removeDeadUnits(child.state);
-                            updateChildDistance(child.state);
-                            actionSet.put(footman2.ID, action1);
-                            actionSet.put(footman1.ID, action2);
-                            child.action = actionSet;
-                            children.add(child);
-                        }
-                    }
-                }
-                if (footman1.nextTo(archer1) && footman2.nextTo(archer2)) {
-                    GameStateChild child = new GameStateChild(oldState);
-                    updateChildState(child.state);
-                    Map<Integer, Action> actionSet = new HashMap<Integer, Action>();
-                    Action action1 = new TargetedAction(footman1.ID, ActionType.PRIMITIVEATTACK, archer1.ID);
-                    child.state.footmen.get(0).attacking = true;
-                    child.state.archers.get(0).health -= footman1.damage;
-                    Action action2 = new TargetedAction(footman2.ID, ActionType.PRIMITIVEATTACK, archer2.ID);
-                    child.state.footmen.get(1).attacking = true;
-                    child.state.archers.get(1).health -= footman2.health;
-                    removeDeadUnits(child.state);
-                    updateChildDistance(child.state);
-                    actionSet.put(footman1.ID, action1);
-                    actionSet.put(footman2.ID, action2);
-                    child.action = actionSet;
-                    children.add(child);
-                }
-                if (footman1.nextTo(archer2) && footman2.nextTo(archer2)) {
-                    GameStateChild child = new GameStateChild(oldState);
-                    updateChildState(child.state);
-                    Map<Integer, Action> actionSet = new HashMap<Integer, Action>();
-                    Action action1 = new TargetedAction(footman1.ID, ActionType.PRIMITIVEATTACK, archer2.ID);
-                    child.state.footmen.get(0).attacking = true;
-                    child.state.archers.get(1).health -= footman1.damage;
-                    Action action2 = new TargetedAction(footman2.ID, ActionType.PRIMITIVEATTACK, archer2.ID);
-                    child.state.footmen.get(1).attacking = true;
-                    child.state.archers.get(1).health -= footman2.health;
-                    removeDeadUnits(child.state);
-                    updateChildDistance(child.state);
-                    actionSet.put(footman1.ID, action1);
-                    actionSet.put(footman2.ID, action2);
-                    child.action = actionSet;
-                    children.add(child);
-                }
-                if (footman1.nextTo(archer2) && footman2.nextTo(archer1)) {
-                    GameStateChild child = new GameStateChild(oldState);
-                    updateChildState(child.state);
-                    Map<Integer, Action> actionSet = new HashMap<Integer, Action>();
-                    Action action1 = new TargetedAction(footman1.ID, ActionType.PRIMITIVEATTACK, archer2.ID);
-                    child.state.footmen.get(0).attacking = true;
-                    child.state.archers.get(1).health -= footman1.damage;
-                    Action action2 = new TargetedAction(footman2.ID, ActionType.PRIMITIVEATTACK, archer1.ID);
-                    child.state.footmen.get(1).attacking = true;
-                    child.state.archers.get(0).health -= footman2.health;
-                    removeDeadUnits(child.state);
-                    updateChildDistance(child.state);
-                    actionSet.put(footman1.ID, action1);
-                    actionSet.put(footman2.ID, action2);
-                    child.action = actionSet;
-                    children.add(child);
-                }
-            }
-        }else {
-            for (Direction direction : Direction.values()) {
-                if (direction.equals(Direction.NORTHEAST) || direction.equals(Direction.SOUTHEAST) || direction.equals(Direction.SOUTHWEST) || direction.equals(Direction.SOUTHEAST)) {
-                    continue;
-                }
-                int x = footman1.getXPosition() + direction.xComponent();
-                int y = footman1.getYPosition() + direction.yComponent();
-                // TODO: check for move on top of archer
-                if (isInMap(x, y) && notOnResourceNode(x, y)) {
-                    GameStateChild child = new GameStateChild(oldState);
-                    updateChildState(child.state);
-                    Map<Integer, Action> actionSet = new HashMap<Integer, Action>();
-                    Action action1 = new DirectedAction(footman1.ID, ActionType.PRIMITIVEMOVE, direction);
-                    child.state.footmen.get(0).position.x = x;
-                    child.state.footmen.get(0).position.y = y;
-                    updateChildDistance(child.state);
-                    actionSet.put(footman1.ID, action1);
-                    child.action = actionSet;
-                    children.add(child);
-                }
-            }
-            if (footman1.nextTo(archer1)) {
-                GameStateChild child = new GameStateChild(oldState);
-                updateChildState(child.state);
-                Map<Integer, Action> actionSet = new HashMap<Integer, Action>();
-                Action action1 = new TargetedAction(footman1.ID, ActionType.PRIMITIVEATTACK, archer1.ID);
-                child.state.footmen.get(0).attacking = true;
-                child.state.archers.get(0).health -= footman1.damage;
-                updateChildDistance(child.state);
-                removeDeadUnits(child.state);
-                actionSet.put(footman1.ID, action1);
-                child.action = actionSet;
-                children.add(child);
-            }
-            if (archers.size() == 2) {
-                StateUnit archer2 = archers.get(1);
-                if (footman1.nextTo(archer2)) {
-                    GameStateChild child = new GameStateChild(oldState);
-                    updateChildState(child.state);
-                    Map<Integer, Action> actionSet = new HashMap<Integer, Action>();
-                    Action action1 = new TargetedAction(footman1.ID, ActionType.PRIMITIVEATTACK, archer2.ID);
-                    child.state.footmen.get(0).attacking = true;
-                    child.state.archers.get(1).health -= footman1.damage;
-                    updateChildDistance(child.state);
-                    removeDeadUnits(child.state);
-                    actionSet.put(footman1.ID, action1);
-                    child.action = actionSet;
-                    children.add(child);
-                }
             }
         }
+        removeDeadUnits(this);
+        markUnits(true);
+        myTurn = !myTurn;
+        utilityKnown = false;
+        distanceKnown = false;
     }
 
-    //generate states where archers have done actions, nearly identical to the above footman method
-    private void generateArcherChildren(List<GameStateChild> children) {
-        // start with states with one archer alive
-        if(archers.size() == 1) {
-            StateUnit archer = archers.get(0);
-            //iterate over all legal directions
-            for (Direction direction : Direction.values()) {
-                if (direction.equals(Direction.NORTHEAST) || direction.equals(Direction.SOUTHEAST) || direction.equals(Direction.SOUTHWEST) || direction.equals(Direction.SOUTHEAST)) {
-                    continue;
-                }
-                int x = archer.getXPosition() + direction.xComponent();
-                int y = archer.getYPosition() + direction.yComponent();
-                //check for map position legality
-                if(isInMap(x, y) && notOnResourceNode(x,y)) {
-                    //initialize child and actions set
-                    GameStateChild child = new GameStateChild(oldState);
-                    updateChildState(child.state);
-                    Map<Integer, Action> actionSet = new HashMap<>();
-                    //generate actions and apply them to child state
-                    Action action = new DirectedAction(archer.ID, ActionType.PRIMITIVEMOVE, direction);
-                    actionSet.put(1, action);
-                    child.state.archers.get(0).position.x = x;
-                    child.state.archers.get(0).position.y = y;
-                    //generate new A* values
-                    updateChildDistance(child.state);
-                    //prep the child and add it to the set
-                    child.action = actionSet;
-                    children.add(child);
-                }
-            }
-            //check to see if the archer can attack any footmen, if so repeat the above process
-            for (int i = 0; i < footmen.size(); i++) {
-                StateUnit footman = footmen.get(i);
-                if (isInRange(archer, footman)) {
-                    GameStateChild child = new GameStateChild(oldState);
-                    updateChildState(child.state);
-                    Map<Integer, Action> actionSet = new HashMap<>();
-                    Action action = new TargetedAction(archer.ID, ActionType.PRIMITIVEATTACK, footman.ID);
-                    actionSet.put(1, action);
-                    child.state.footmen.get(i).health -= 6; //hardcoded expected value lol
-                    child.state.archers.get(0).attacking = true;
-                    updateChildDistance(child.state);
-                    child.action = actionSet;
-                    children.add(child);
-                }
-            }
-            // repeat the above process for 2 archers
-        } else if (archers.size() ==2) {
-            StateUnit archer1 = archers.get(0);
-            StateUnit archer2 = archers.get(1);
-            for (Direction direction : Direction.values()) {
-                if (direction.equals(Direction.NORTHEAST) || direction.equals(Direction.SOUTHEAST) || direction.equals(Direction.SOUTHWEST) || direction.equals(Direction.SOUTHEAST)) {
-                    continue;
-                }
+    // the unit an attack code of the side to move is aimed at
+    private StateUnit target(int action) {
+        return myTurn ? allArchers.get(action - ATTACK_CODE) : footmen.get(action - ATTACK_CODE);
+    }
 
+    // index of a cell in the bitsets, x and y may be one step off the map
+    private int cell(int x, int y) {
+        return (y + 1) * stride + x + 1;
+    }
 
+    private static boolean isSet(long[] bits, int cell) {
+        return (bits[cell >>> 6] & (1L << cell)) != 0;
+    }
 
-                for (Direction direction1: Direction.values()) {
-                    if (direction1.equals(Direction.NORTHEAST) || direction1.equals(Direction.SOUTHEAST) || direction1.equals(Direction.SOUTHWEST) || direction1.equals(Direction.SOUTHEAST)) {
-                        continue;
-                    }
-                    int x1 = archer1.getXPosition() + direction.xComponent();
-                    int x2 = archer2.getXPosition() + direction1.yComponent();
-                    int y1 = archer1.getYPosition() + direction.yComponent();
-                    int y2 = archer2.getYPosition() + direction1.yComponent();
-
-                    if(isInMap(x1, y1) && isInMap(x2,y2) && notOnResourceNode(x1,y1) && notOnResourceNode(x2, y2) && notTheSameMove(x1, x2, y1, y2)) {
-                        GameStateChild child = new GameStateChild(oldState);
-                        updateChildState(child.state);
-                        Map<Integer, Action> actionSet = new HashMap<>();
-                        Action action  = new DirectedAction(archer1.ID, ActionType.PRIMITIVEMOVE, direction);
-                        Action action2 = new DirectedAction(archer2.ID, ActionType.PRIMITIVEMOVE, direction1);
-                        actionSet.put(1, action);
-                        actionSet.put(2, action2);
-                        child.state.archers.get(0).position.x = x1;
-                        child.state.archers.get(0).position.y = y1;
-                        child.state.archers.get(1).position.x = x2;
-                        child.state.archers.get(1).position.y = y2;
-                        updateChildDistance(child.state);
-                        child.action = actionSet;
-                        children.add(child);
-                    }
-                }
-            }
+    private static void setBit(long[] bits, int cell) {
+        bits[cell >>> 6] |= 1L << cell;
+    }
 
-            //Archer 1 attacking
-            for (int i = 0; i < footmen.size(); i++) {
-                StateUnit footman = footmen.get(i);
-                if(isInRange(archer1, footman)) {
-                    for (Direction direction1: Direction.values()) {
-                        if (direction1.equals(Direction.NORTHEAST) || direction1.equals(Direction.SOUTHEAST) || direction1.equals(Direction.SOUTHWEST) || direction1.equals(Direction.SOUTHEAST)) {
-                            continue;
-                        }
-                        int x2 = archer2.getXPosition() + direction1.yComponent();
-                        int y2 = archer2.getYPosition() + direction1.yComponent();
-
-                        if(isInMap(x2,y2) && notOnResourceNode(x2, y2)) {
-                            GameStateChild child = new GameStateChild(oldState);
-                            updateChildState(child.state);
-                            Map<Integer, Action> actionSet = new HashMap<>();
-                            Action action  = new TargetedAction(archer1.ID, ActionType.PRIMITIVEATTACK, footman.ID);
-                            Action action2 = new DirectedAction(archer2.ID, ActionType.PRIMITIVEMOVE, direction1);
-                            actionSet.put(1, action);
-                            actionSet.put(2, action2);
-                            child.state.archers.get(1).position.x = x2;
-                            child.state.archers.get(1).position.y = y2;
-                            child.state.footmen.get(i).health -= 6;
-                            child.state.archers.get(0).attacking = true;
-                            updateChildDistance(child.state);
-                            child.action = actionSet;
-                            children.add(child);
-                        }
-                    }
-                }
-            }
+    private static void clearBit(long[] bits, int cell) {
+        bits[cell >>> 6] &= ~(1L << cell);
+    }
 
-            //Archer 2 attacking
-            for (int i = 0; i < footmen.size(); i++) {
-                StateUnit footman = footmen.get(i);
-                if(isInRange(archer2, footman)) {
-                    for (Direction direction1: Direction.values()) {
-                        if (direction1.equals(Direction.NORTHEAST) || direction1.equals(Direction.SOUTHEAST) || direction1.equals(Direction.SOUTHWEST) || direction1.equals(Direction.SOUTHEAST)) {
-                            continue;
-                        }
-                        int x2 = archer1.getXPosition() + direction1.yComponent();
-                        int y2 = archer1.getYPosition() + direction1.yComponent();
-
-                        if(isInMap(x2,y2) && notOnResourceNode(x2, y2)) {
-                            GameStateChild child = new GameStateChild(oldState);
-                            updateChildState(child.state);
-                            Map<Integer, Action> actionSet = new HashMap<>();
-                            Action action  = new TargetedAction(archer2.ID, ActionType.PRIMITIVEATTACK, footman.ID);
-                            Action action2 = new DirectedAction(archer1.ID, ActionType.PRIMITIVEMOVE, direction1);
-                            actionSet.put(1, action);
-                            actionSet.put(2, action2);
-                            child.state.archers.get(0).position.x = x2;
-                            child.state.archers.get(0).position.y = y2;
-                            child.state.footmen.get(i).health -= 6;
-                            child.state.archers.get(1).attacking = true;
-                            updateChildDistance(child.state);
-                            child.action = actionSet;
-                            children.add(child);
-                        }
-                    }
-                }
+    // sets or clears the cells of the living units, cleared before units move and set after. A dead
+    // footman is off the board like SEPIA removes it, so another footman may stand on its cell.
+    private void markUnits(boolean set) {
+        for (StateUnit footman : footmen) {
+            if (isDead(footman)) {
+                continue;
             }
-
-            //Both archers attacking
-            for (int i = 0; i < footmen.size(); i++) {
-                StateUnit footman = footmen.get(i);
-                if(isInRange(archer1, footman)) {
-                    for (int j = 0; j < footmen.size(); j++) {
-                        StateUnit footman1 = footmen.get(i);
-                        if(isInRange(archer2, footman1)) {
-                            GameStateChild child = new GameStateChild(oldState);
-                            updateChildState(child.state);
-                            Map<Integer, Action> actionSet = new HashMap<>();
-                            Action action = new TargetedAction(archer1.ID, ActionType.PRIMITIVEATTACK, footman.ID);
-                            Action action1 = new TargetedAction(archer2.ID, ActionType.PRIMITIVEATTACK, footman1.ID);
-                            actionSet.put(1, action);
-                            actionSet.put(2, action1);
-                            child.state.archers.get(0).attacking = true;
-                            child.state.archers.get(1).attacking = true;
-                            child.state.footmen.get(i).health -= 6;
-                            child.state.footmen.get(j).health -= 6;
-                            updateChildDistance(child.state);
-                            child.action = actionSet;
-                            children.add(child);
-                        }
-                    }
-                }
+            int cell = cell(x(footman), y(footman));
+            if (set) {
+                setBit(footmanCells, cell);
+            } else {
+                clearBit(footmanCells, cell);
+            }
+        }
+        for (StateUnit archer : archers) {
+            int cell = cell(x(archer), y(archer));
+            if (set) {
+                setBit(archerCells, cell);
+            } else {
+                clearBit(archerCells, cell);
             }
         }
     }
 
-    //determines if an archer is able to attack a footman
-    private boolean isInRange(StateUnit archer, StateUnit footman) {
-        return  Math.abs(archer.getXPosition() - footman.getXPosition()) + Math.abs(archer.getYPosition() - footman.getYPosition()) <= archer.range;
+    // whether a footman can step onto the given cell: on the map, not on a resource and not on an archer
+    private boolean isOpenForFootman(int x, int y) {
+        int cell = cell(x, y);
+        return !isSet(walls, cell) && !isSet(archerCells, cell);
     }
 
-    //performs A* between 2 positions on the map
-    private int getAStarPathLength(Position start, Position end, int xExtent, int yExtent) {
-
-        boolean done = false;
-        MapLocation current = null;
-        PriorityQueue<MapLocation> nextLocs = new PriorityQueue<>();
-        Set<MapLocation> closedList = new HashSet<>();
-
-        //Transform Positions to map locations
-        MapLocation startLocation = new MapLocation(start.x, start.y);
-        MapLocation endLocation = new MapLocation(end.x, end.y);
-
-        startLocation.cost = 0;
-        startLocation.heuristic = chebyshev(startLocation, endLocation);
-        nextLocs.add(startLocation);
-
-        while(nextLocs.peek() != null) {
-            if(done){
-                int pathLength = 0;
-                current = current.cameFrom;
-                while (current != null && current.cameFrom != null) {
-                    pathLength++;
-                    current = current.cameFrom;
-                }
-                return pathLength;
-            }
+    // whether an archer can step onto the given cell
+    private boolean isOpenForArcher(int x, int y) {
+        int cell = cell(x, y);
+        return !isSet(walls, cell) && !isSet(footmanCells, cell);
+    }
 
-            current = nextLocs.poll();
-            closedList.add(current);
-            List<MapLocation> neighbors = getValidNeighbors(current, xExtent, yExtent);
-            for(MapLocation neighbor : neighbors){
-                neighbor.heuristic = chebyshev(neighbor, endLocation);
-                neighbor.cost = current.cost + 1;
+    // assigns values of bestDistance for each footman and their total. A pair's path length is only
+    // worked out again when one of the two moved, or another footman that moved can be in its way:
+    // it was on a shortest path before or is on one now. A footman dying counts as moving, since it
+    // stops being in the way. An archer dying doesn't touch any path, it just drops out.
+    private void updateBestDistance() {
+        long start = stats != null ? System.nanoTime() : 0;
 
-                if(closedList.contains(neighbor)) {
+        int archerCount = allArchers.size();
+        distanceTotal = 0;
+        for(int i = 0; i < footmen.size(); i++) {
+            StateUnit footman = footmen.get(i);
+            int distance = archers.isEmpty() ? 0 : Integer.MAX_VALUE; // nothing left to chase once the archers are dead
+            for (int a = 0; a < archerCount; a++) {
+                StateUnit archer = allArchers.get(a);
+                if (isDead(archer)) {
                     continue;
                 }
-                if(!nextLocs.contains(neighbor)) {
-                    nextLocs.add(neighbor);
-                } else if(current.cost + 1 >= neighbor.cost) {
-                    continue;
+                int pair = i * archerCount + a;
+                boolean stale = pairsStale || ((staleFootmen >>> i) & 1) != 0 || ((staleArchers >>> a) & 1) != 0;
+                if (!stale && staleFootmen != 0) {
+                    stale = ((blockedPairs >>> pair) & 1) != 0 || movedIntoPath(footman, archer);
+                }
+                if (stale) {
+                    pairDistance[pair] = getPathLength(x(footman), y(footman), x(archer), y(archer));
+                    if (pathBlocked && pair < 64) {
+                        blockedPairs |= 1L << pair;
+                    } else if (pair < 64) {
+                        blockedPairs &= ~(1L << pair);
+                    }
+                }
+                if (pairDistance[pair] < distance) {
+                    distance = pairDistance[pair];
                 }
-
-                neighbor.cameFrom = current;
-            }
-            if (current.equals(endLocation)) {
-                done = true;
             }
-
+            bestDistance[i] = distance;
+            distanceTotal += distance;
+        }
+        pairsStale = false;
+        staleFootmen = 0;
+        staleArchers = 0;
+        distanceKnown = true;
+        if (stats != null) {
+            stats.distanceTime.add(System.nanoTime() - start);
         }
-
-        return Integer.MAX_VALUE;
-
     }
 
-    // returns all neighbors of the A* MapLocation
-    private List<MapLocation> getValidNeighbors(MapLocation current, int xExtent, int yExtent) {
-        List<MapLocation> neighborList = new ArrayList<>();
-
-        for (int x = -1; x < 2; x=x+2) {
-            if (current.x + x >= 0 && current.x + x < xExtent && current.y>= 0 && current.y< yExtent &&(x != 0)) { // check if it's on the map
-                MapLocation test = new MapLocation(current.x + x, current.y);
-                if (!isLocationOccupied(test.x, test.y)) { // check if the location is occupied
-                    neighborList.add(test);
+    // creates the moves of whoever's turn it is, the ones with at least one attack or the ones where
+    // every unit walks. A move leading to the same state as one before it is left out, see join.
+    // Units and targets are taken in the order of their cells rather than their index, so the order
+    // only depends on what getZobristKey hashes.
+    private long[] generateMoves(boolean attacking) {
+        //dead footmen stay in footmen for the utility, but neither move nor get attacked
+        List<StateUnit> units = inCellOrder(myTurn ? livingFootmen() : archers);
+        List<StateUnit> enemies = inCellOrder(myTurn ? archers : livingFootmen());
+        if (units.isEmpty() || enemies.isEmpty()) {
+            return new long[0];
+        }
+        int enemyCount = myTurn ? allArchers.size() : footmen.size();
+        int[][] options = new int[units.size()][ATTACK_CODE + enemyCount]; // [unit] the action codes it can take
+        int[] counts = new int[units.size()];
+        int added = 0;
+        //the steps left after pruning can all run the units into each other, then every step is tried
+        for (boolean prune = units.size() > PRUNE_ABOVE_UNITS; added == 0; prune = false) {
+            boolean anyAttack = false;
+            for (int i = 0; i < units.size(); i++) {
+                counts[i] = 0;
+                if (attacking) {
+                    counts[i] = addAttacks(units.get(i), enemies, options[i], 0);
+                    anyAttack |= counts[i] > 0;
                 }
+                counts[i] = addWalks(units.get(i), enemies, prune, options[i], counts[i]);
+            }
+            if (attacking && !anyAttack) {
+                return new long[0];
+            }
+            added = join(units, options, counts, 0, new int[units.size()], new int[units.size()], attacking, 0);
+            if (!prune) {
+                break;
             }
         }
+        return Arrays.copyOf(generated, added);
+    }
 
-        for (int y = -1; y < 2; y=y+2) { // iterate over all nodes around current
-            if (current.x >= 0 && current.x < xExtent && current.y + y >= 0 && current.y + y < yExtent &&(y != 0)) { // check if it's on the map
-                MapLocation test = new MapLocation(current.x , current.y + y);
-                if (!isLocationOccupied(test.x, test.y)) { // check if the location is occupied
-                    neighborList.add(test);
-                }
+    // every living enemy the unit can hit from where it stands, footmen next to an archer, archers in
+    // range of a footman. Adds their action codes after the first count and returns the new count.
+    private int addAttacks(StateUnit unit, List<StateUnit> enemies, int[] actions, int count) {
+        for (StateUnit enemy : enemies) {
+            if (myTurn ? nextTo(unit, enemy) : isInRange(unit, enemy)) {
+                actions[count++] = ATTACK_CODE + enemy.index;
             }
         }
-
-        return neighborList;
+        return count;
     }
 
-    //determines if the MapLocation is occupied by a resource
-    private boolean isLocationOccupied(int x, int y)
-    {
-        for(StateUnit unit: footmen) {
-            if(unit.getXPosition() == x && unit.getYPosition() ==y) {
-                return true;
+    // every legal step for the unit. With pruning, steps that lose ground against every enemy are
+    // dropped: a footman moving away from all the archers, an archer moving toward all the footmen.
+    // If that would leave the unit no steps at all it keeps them.
+    private int addWalks(StateUnit unit, List<StateUnit> enemies, boolean prune, int[] actions, int count) {
+        int first = count;
+        int x = x(unit);
+        int y = y(unit);
+        for (int i = 0; i < MOVES.length; i++) {
+            int toX = x + MOVES[i].xComponent();
+            int toY = y + MOVES[i].yComponent();
+            boolean open = myTurn ? isOpenForFootman(toX, toY) : isOpenForArcher(toX, toY);
+            if (open && (!prune || !losesGround(x, y, toX, toY, enemies))) {
+                actions[count++] = 1 + i;
             }
         }
+        if (prune && count == first) {
+            return addWalks(unit, enemies, false, actions, count);
+        }
+        return count;
+    }
 
-//        for(StateUnit unit: archers) {
-//            if(unit.getXPosition() == x && unit.getYPosition() ==y) {
-//                return true;
-//            }
-//        }
-
-        for(Position resource : resources) {
-            if(resource.x == x && resource.y == y) {
-                return true;
+    // whether a step from (x, y) to (toX, toY) loses ground against every living enemy of the side to move
+    private boolean losesGround(int x, int y, int toX, int toY, List<StateUnit> enemies) {
+        for (StateUnit enemy : enemies) {
+            int before = steps(x, y, enemy);
+            int after = steps(toX, toY, enemy);
+            if (myTurn ? after <= before : after >= before) {
+                return false;
             }
         }
-
-        return false;
+        return !enemies.isEmpty();
     }
 
-    //calculates the shortest axis distance between two points on the map
-    private float chebyshev(MapLocation a, MapLocation b) {
-        return Math.max(Math.abs(a.x - b.x), Math.abs(a.y - b.y));
-    }
-
-    // class used by A* to represent position on the map
-    private class MapLocation implements Comparable<MapLocation>{
-        public int x, y;
-
-        public MapLocation cameFrom; // previous location on map from search
-
-        public float cost; // Cost of reaching this location on the map from the start node
-
-        public float heuristic; // the chebyshev distance from this node to the goal
-
-        /**
-         * Constructor used to initialize a MapLocation in search.
-         * @param x the column that the cell is in
-         * @param y the row the cell is in
-         * @param cameFrom the previous cell in the A* search
-         * @param cost the cost to reach this node in A* search
-         * @param heuristic the chebyshev distance from this cell to the goal
-         */
-        public MapLocation(int x, int y, MapLocation cameFrom, float cost, float heuristic)
-        {
-            this.x = x;
-            this.y = y;
-            this.cameFrom = cameFrom;
-            this.cost = cost;
-            this.heuristic = heuristic;
-        }
-
-        /**
-         * Constructor used to initialize a MapLocation when all info is not known.
-         * @param x the column that the cell is in
-         * @param y the row the cell is in
-         */
-        public MapLocation(int x, int y) {
-            this.x = x;
-            this.y = y;
-            this.cost = Integer.MAX_VALUE;
-            this.heuristic = Integer.MAX_VALUE;
-            this.cameFrom = null;
-        }
-
-        /**
-         * Returns true if the given object is a MapLocation with the same coordinates.
-         * @param other The other cell in question
-         * @return
-         */
-        public boolean equals(Object other) {
-
-            if (other != null && other instanceof  MapLocation) {
-                MapLocation oMap = (MapLocation)other;
-                if (this.x == oMap.x && this.y == oMap.y) {
-                    return true;
-                } else {
-                    return false;
+    // adds every combination of one action per unit from the given one on, where no two units end
+    // up on the same cell, and where some unit attacks if attacking is set. The first unit's actions
+    // are the outermost loop, the same order the nested loops for two units used to have.
+    //
+    // Different combinations can lead to the same state: two archers that can both hit both
+    // footmen, or two footmen stepping into each other's cells. Only the first of them is kept.
+    //
+    // The moves go in generated after the first added, returns how many there are now.
+    private int join(List<StateUnit> units, int[][] options, int[] counts, int index, int[] chosen, int[] cells,
+                     boolean attacking, int added) {
+        if (index == units.size()) {
+            boolean attacks = false;
+            long move = 0;
+            for (int i = 0; i < chosen.length; i++) {
+                attacks |= chosen[i] >= ATTACK_CODE;
+                move |= (long) chosen[i] << (8 * units.get(i).index);
+            }
+            if (attacking && !attacks) {
+                return added;
+            }
+            long signature = moveSignature(units, chosen);
+            for (int i = 0; i < added; i++) {
+                if (signatures[i] == signature) {
+                    return added;
                 }
             }
-            return  false;
+            if (signatures == null) {
+                signatures = new long[16];
+                generated = new long[16];
+            } else if (added == signatures.length) {
+                signatures = Arrays.copyOf(signatures, added * 2);
+                generated = Arrays.copyOf(generated, added * 2);
+            }
+            signatures[added] = signature;
+            generated[added] = move;
+            return added + 1;
+        }
+        StateUnit unit = units.get(index);
+        for (int k = 0; k < counts[index]; k++) {
+            int action = options[index][k];
+            int x = x(unit);
+            int y = y(unit);
+            if (action < ATTACK_CODE) {
+                x += MOVES[action - 1].xComponent();
+                y += MOVES[action - 1].yComponent();
+            }
+            int cell = cell(x, y);
+            boolean free = true;
+            for (int other = 0; other < index; other++) {
+                free &= cells[other] != cell;
+            }
+            if (free) {
+                chosen[index] = action;
+                cells[index] = cell;
+                added = join(units, options, counts, index + 1, chosen, cells, attacking, added);
+            }
         }
+        return added;
+    }
 
-        /**
-         * Used in Priority queues to order MapLocations.  A MapLocation is "less" when
-         * it has a lower total cost than another MapLocation
-         * @param other
-         * @return -1 if less, 0 if same, 1 if more
-         */
-        public int compareTo(MapLocation other) {
-            return Float.compare(this.heuristic + this.cost, other.heuristic + other.cost);
+    // a hash of what a move changes, the same for two moves exactly when they lead to the same
+    // state up to swapping units of a side: the ZobristKeys key of every unit of the side after
+    // moving, and for each unit attacked, how much damage it takes. The other side's units only
+    // lose their attacking flags, the same way whatever the move.
+    private long moveSignature(List<StateUnit> units, int[] chosen) {
+        long moved = 0;
+        long damage = 0;
+        for (int i = 0; i < chosen.length; i++) {
+            StateUnit unit = units.get(i);
+            int x = x(unit);
+            int y = y(unit);
+            if (chosen[i] < ATTACK_CODE) {
+                Direction direction = MOVES[chosen[i] - 1];
+                moved ^= zobrist.unitKey(myTurn, x + direction.xComponent(), y + direction.yComponent(), health(unit), false);
+            } else {
+                moved ^= zobrist.unitKey(myTurn, x, y, health(unit), true);
+                //summed rather than XORed so two hits on one unit don't cancel out
+                StateUnit target = target(chosen[i]);
+                damage += unit.damage * zobrist.unitKey(!myTurn, x(target), y(target), 0, false);
+            }
         }
+        return moved ^ Long.rotateLeft(damage, 29);
+    }
 
-        /**
-         * Used for hashcoding
-         * @return the string version of the coordinates of the cell
-         */
-        public String toString() {
-            return "(" + x + "," + y + ")";
+    // a copy of the units sorted by the cell they are on, no two living units share one
+    private List<StateUnit> inCellOrder(List<StateUnit> units) {
+        List<StateUnit> sorted = new ArrayList<StateUnit>(units);
+        for (int i = 1; i < sorted.size(); i++) {
+            StateUnit unit = sorted.get(i);
+            int cell = y(unit) * xExtent + x(unit);
+            int j = i;
+            for (; j > 0 && y(sorted.get(j - 1)) * xExtent + x(sorted.get(j - 1)) > cell; j--) {
+                sorted.set(j, sorted.get(j - 1));
+            }
+            sorted.set(j, unit);
         }
+        return sorted;
+    }
 
-        /**
-         * Implemented to allow for ArrayList.contains to work
-         * @return the hash of the toString of this object. Equivalent cells will hash to the same value
-         */
-        public int hashCode() {
-            return this.toString().hashCode();
+    // the footmen still alive, in footmen order
+    private List<StateUnit> livingFootmen() {
+        List<StateUnit> living = new ArrayList<StateUnit>(footmen.size());
+        for (StateUnit footman : footmen) {
+            if (!isDead(footman)) {
+                living.add(footman);
+            }
         }
+        return living;
     }
 
-    //class used by GameState to represent a position on the map
-    private class Position {
-        public int x;
-        public int y;
+    //determines if an archer is able to attack a footman
+    private boolean isInRange(StateUnit archer, StateUnit footman) {
+        return  Math.abs(x(archer) - x(footman)) + Math.abs(y(archer) - y(footman)) <= archer.range;
+    }
 
-        public Position(int x, int y) {
-            this.x = x;
-            this.y = y;
+    // whether a footman in staleFootmen other than the given one now stands on a shortest path from
+    // it to the archer. Without the distance table any footman can be in the way.
+    private boolean movedIntoPath(StateUnit footman, StateUnit archer) {
+        if (distances == null) {
+            return true;
         }
+        for (int g = 0; g < footmen.size(); g++) {
+            StateUnit other = footmen.get(g);
+            if (g != footman.index && ((staleFootmen >>> g) & 1) != 0
+                    && distances.onShortestPath(x(footman), y(footman), x(other), y(other), x(archer), y(archer))) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-        public Position(ResourceNode.ResourceView view) {
-            this.x = view.getXPosition();
-            this.y = view.getYPosition();
+    // number of cells between start and end on a path around the resources and the footmen,
+    // looked up in the distance table and only searched with A* when footmen are in the way.
+    // Maps too big for the table search the cluster graph instead. Sets pathBlocked.
+    private int getPathLength(int startX, int startY, int endX, int endY) {
+        pathBlocked = true;
+        if (distances == null) {
+            return clusters.pathLength(startX, startY, endX, endY, footmanCells);
+        }
+        pathBlocked = false;
+        int distance = distances.distance(startX, startY, endX, endY);
+        if (distance == DistanceOracle.UNREACHABLE) {
+            return Integer.MAX_VALUE;
+        }
+        StateUnit blocker = null;
+        for (StateUnit footman : footmen) {
+            if (isDead(footman)) {
+                continue;
+            }
+            if ((x(footman) != startX || y(footman) != startY)
+                    && distances.onShortestPath(startX, startY, x(footman), y(footman), endX, endY)) {
+                if (blocker != null) {
+                    // two footmen on shortest paths might close every route between them
+                    return getAStarPathLength(startX, startY, endX, endY);
+                }
+                blocker = footman;
+                pathBlocked = true;
+            }
         }
+        if (blocker != null && !distances.hasDetour(startX, startY, x(blocker), y(blocker), endX, endY)) {
+            return getAStarPathLength(startX, startY, endX, endY);
+        }
+        // A* counts the cells in between, not the steps
+        return distance - 1;
+    }
 
-        public Position copy() {
-            return new Position(x, y);
+    //performs A* between 2 cells on the map, around the resources and the footmen. Benchmark times it
+    //against the distance table. On transposable maps it has to be the shortest length so a state and
+    //its mirror image evaluate the same
+    int getAStarPathLength(int startX, int startY, int endX, int endY) {
+        PathFinder finder = PathFinder.forMap(xExtent, yExtent);
+        if (transposable) {
+            return finder.shortestPathLength(startX, startY, endX, endY, walls, footmanCells);
         }
+        return finder.pathLength(startX, startY, endX, endY, walls, footmanCells);
+    }
 
+    // class used by gamestate to represent archers and footmen. Only what never changes about a unit is
+    // here, where it stands and how it is doing are in units, so every copy of a state shares these
+    private static class StateUnit {
+        public final int ID;
+        public final int index; // position in footmen or allArchers, which never change order
+        public final int offset; // where the unit's values start in units
+        public final int range;
+        public final int damage;
+
+        public StateUnit(int ID, int index, int offset, int range, int damage) {
+            this.ID = ID;
+            this.index = index;
+            this.offset = offset;
+            this.range = range;
+            this.damage = damage;
+        }
     }
 
-    // class used by gamestate to represent archers and footmen
-    private class StateUnit {
-        public int ID;
-        public Position position;
-        public int health;
-        public int range;
-        public int damage;
-        public boolean attacking = false;
+    // where a unit stands and how it is doing, read from units
+    private int x(StateUnit unit) {
+        return units[unit.offset + X];
+    }
 
-        public StateUnit(edu.cwru.sepia.environment.model.state.Unit.UnitView realUnit) {
-            this.ID = realUnit.getID();
-            this.position = new Position(realUnit.getXPosition(), realUnit.getYPosition());
-            this.health = realUnit.getTemplateView().getBaseHealth();
-            this.range = realUnit.getTemplateView().getRange();
-            this.damage = realUnit.getTemplateView().getBasicAttack();
-        }
+    private int y(StateUnit unit) {
+        return units[unit.offset + Y];
+    }
 
-        public int getXPosition() {
-            return position.x;
-        }
+    private int health(StateUnit unit) {
+        return units[unit.offset + HEALTH];
+    }
 
-        public int getYPosition() {
-            return position.y;
-        }
+    private boolean isAttacking(StateUnit unit) {
+        return units[unit.offset + ATTACKING] != 0;
+    }
 
-        public boolean nextTo(StateUnit otherUnit) {
-            return (1 == Math.max(Math.abs(this.getXPosition() - otherUnit.getXPosition()), Math.abs(this.getYPosition() - otherUnit.getYPosition())));
-        }
+    private boolean isDead(StateUnit unit) {
+        return units[unit.offset + HEALTH] <= 0;
+    }
 
-        public boolean isDead() {
-            return (this.health <= 0);
-        }
+    private boolean nextTo(StateUnit unit, StateUnit otherUnit) {
+        return (1 == Math.max(Math.abs(x(unit) - x(otherUnit)), Math.abs(y(unit) - y(otherUnit))));
     }
 }
@@ -0,0 +1,462 @@
+package edu.cwru.sepia.agent.minimax;
+
+import java.util.Arrays;
+
+/**
+ * Path lengths on maps too big for the distance table, found on a small abstract graph instead
+ * of the whole grid (HPA*).
+ *
+ * The map is cut into square clusters. Wherever two neighbouring clusters have a run of open
+ * cells facing each other across their border, the run gets a transition in the middle, and one
+ * at each end too when it is wider than two cells. The cells on both sides of a transition are the graph's nodes,
+ * joined by an edge of length 1, and every pair of nodes in the same cluster is joined by their
+ * distance inside the cluster. All of this only depends on the resources, so it is built once
+ * per map.
+ *
+ * A query searches the start's cluster and the goal's cluster to connect the two cells to the
+ * graph, then runs A* over the nodes. Footmen are the only units in the way and there are a few
+ * of them, so the clusters they stand in get their distances searched again around them for the
+ * query and every other cluster uses the stored ones. The work depends on the cluster size and
+ * how many clusters the path crosses rather than on the number of cells.
+ *
+ * Paths only cross cluster borders at transitions, so a length can come out a little longer
+ * than the true shortest path, mostly when it runs along a border. That is fine for the utility,
+ * which only compares them.
+ */
+class HierarchicalPathFinder {
+
+    static final int CLUSTER_SIZE = 10;
+    private static final int WIDE_ENTRANCE = 3; // runs at least this wide get a transition at each end as well
+    private static final int UNREACHABLE = -1;
+
+    private final int xExtent;
+    private final int yExtent;
+    private final boolean[] blocked; // [cell index] true where a resource node is
+    private final int clustersX;
+    private final int clustersY;
+    private final int[] clusterNodes; // [cluster] first node of the cluster, nodes are numbered cluster by cluster
+    private final int[] nodeCell; // [node] cell index
+    private final int[] neighbourStart; // [node] first entry in neighbours of the node's transitions
+    private final int[] neighbours; // nodes one step away across a cluster border
+    private final int[][] intra; // [cluster][from * nodes in cluster + to] distance inside the cluster or UNREACHABLE
+
+    private final ThreadLocal<Search> searches = new ThreadLocal<>();
+
+    /**
+     * Builds the graph for a map. MapData keeps the one for each map.
+     *
+     * @param blocked Cells holding a resource node, indexed y * xExtent + x, kept by the graph
+     */
+    HierarchicalPathFinder(int xExtent, int yExtent, boolean[] blocked) {
+        this.xExtent = xExtent;
+        this.yExtent = yExtent;
+        this.blocked = blocked;
+        clustersX = (xExtent + CLUSTER_SIZE - 1) / CLUSTER_SIZE;
+        clustersY = (yExtent + CLUSTER_SIZE - 1) / CLUSTER_SIZE;
+
+        // find the transitions as pairs of cells on either side of a border
+        int cells = xExtent * yExtent;
+        int[] pairs = new int[16];
+        int pairCount = 0;
+        boolean[] isNode = new boolean[cells];
+        for (int border = CLUSTER_SIZE; border < xExtent; border += CLUSTER_SIZE) {
+            for (int y0 = 0; y0 < yExtent; y0 += CLUSTER_SIZE) {
+                int y1 = Math.min(y0 + CLUSTER_SIZE, yExtent);
+                for (int y = y0; y < y1; ) {
+                    if (!isOpenPair(border - 1, y, border, y)) {
+                        y++;
+                        continue;
+                    }
+                    int start = y;
+                    while (y < y1 && isOpenPair(border - 1, y, border, y)) {
+                        y++;
+                    }
+                    for (int at : transitions(start, y - 1)) {
+                        pairs = add(pairs, pairCount++, at * xExtent + border - 1, at * xExtent + border, isNode);
+                    }
+                }
+            }
+        }
+        for (int border = CLUSTER_SIZE; border < yExtent; border += CLUSTER_SIZE) {
+            for (int x0 = 0; x0 < xExtent; x0 += CLUSTER_SIZE) {
+                int x1 = Math.min(x0 + CLUSTER_SIZE, xExtent);
+                for (int x = x0; x < x1; ) {
+                    if (!isOpenPair(x, border - 1, x, border)) {
+                        x++;
+                        continue;
+                    }
+                    int start = x;
+                    while (x < x1 && isOpenPair(x, border - 1, x, border)) {
+                        x++;
+                    }
+                    for (int at : transitions(start, x - 1)) {
+                        pairs = add(pairs, pairCount++, (border - 1) * xExtent + at, border * xExtent + at, isNode);
+                    }
+                }
+            }
+        }
+
+        // number the nodes cluster by cluster so each cluster's nodes are a range
+        int clusters = clustersX * clustersY;
+        clusterNodes = new int[clusters + 1];
+        int[] cellNode = new int[cells];
+        int nodes = 0;
+        for (int cell = 0; cell < cells; cell++) {
+            if (isNode[cell]) {
+                clusterNodes[clusterOf(cell) + 1]++;
+                nodes++;
+            }
+        }
+        for (int cluster = 0; cluster < clusters; cluster++) {
+            clusterNodes[cluster + 1] += clusterNodes[cluster];
+        }
+        nodeCell = new int[nodes];
+        int[] filled = Arrays.copyOf(clusterNodes, clusters);
+        for (int cell = 0; cell < cells; cell++) {
+            if (isNode[cell]) {
+                int node = filled[clusterOf(cell)]++;
+                nodeCell[node] = cell;
+                cellNode[cell] = node;
+            }
+        }
+
+        // the transitions' edges, both ways
+        neighbourStart = new int[nodes + 1];
+        for (int i = 0; i < pairCount; i++) {
+            neighbourStart[cellNode[pairs[2 * i]] + 1]++;
+            neighbourStart[cellNode[pairs[2 * i + 1]] + 1]++;
+        }
+        for (int node = 0; node < nodes; node++) {
+            neighbourStart[node + 1] += neighbourStart[node];
+        }
+        neighbours = new int[neighbourStart[nodes]];
+        filled = Arrays.copyOf(neighbourStart, nodes);
+        for (int i = 0; i < pairCount; i++) {
+            int a = cellNode[pairs[2 * i]];
+            int b = cellNode[pairs[2 * i + 1]];
+            neighbours[filled[a]++] = b;
+            neighbours[filled[b]++] = a;
+        }
+
+        // distances between the nodes of each cluster, around the resources only
+        intra = new int[clusters][];
+        Search search = new Search(this);
+        for (int cluster = 0; cluster < clusters; cluster++) {
+            intra[cluster] = clusterDistances(cluster, search, null, null);
+        }
+    }
+
+    // about how much memory the graph takes, not counting each thread's search scratch
+    long sizeInBytes() {
+        long size = 4L * (clusterNodes.length + nodeCell.length + neighbourStart.length + neighbours.length);
+        for (int[] distances : intra) {
+            size += 4L * distances.length;
+        }
+        return size;
+    }
+
+    private boolean isOpenPair(int x1, int y1, int x2, int y2) {
+        return !blocked[y1 * xExtent + x1] && !blocked[y2 * xExtent + x2];
+    }
+
+    // where along a run of open border cells the transitions go
+    private static int[] transitions(int first, int last) {
+        if (last - first + 1 >= WIDE_ENTRANCE) {
+            return new int[]{first, (first + last) / 2, last};
+        }
+        return new int[]{(first + last) / 2};
+    }
+
+    private static int[] add(int[] pairs, int index, int cell1, int cell2, boolean[] isNode) {
+        if (2 * index + 2 > pairs.length) {
+            pairs = Arrays.copyOf(pairs, pairs.length * 2);
+        }
+        pairs[2 * index] = cell1;
+        pairs[2 * index + 1] = cell2;
+        isNode[cell1] = true;
+        isNode[cell2] = true;
+        return pairs;
+    }
+
+    private int clusterOf(int cell) {
+        return (cell / xExtent / CLUSTER_SIZE) * clustersX + (cell % xExtent) / CLUSTER_SIZE;
+    }
+
+    /**
+     * Finds the number of cells between start and end, not counting either, around the resources
+     * and the units. The units are given as GameState's bitset, a bit per cell of the map with a
+     * one cell border around it.
+     *
+     * @param units Cells with a unit that blocks the path
+     * @return The number of cells in between, or Integer.MAX_VALUE if there is no path
+     */
+    int pathLength(int startX, int startY, int endX, int endY, long[] units) {
+        Search search = searches.get();
+        if (search == null) {
+            search = new Search(this);
+            searches.set(search);
+        }
+        search.begin();
+
+        // the clusters the units stand in need their own distances for this query
+        int stride = xExtent + 2;
+        for (int word = 0; word < units.length; word++) {
+            long bits = units[word];
+            while (bits != 0) {
+                int bit = word * 64 + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                int x = bit % stride - 1;
+                int y = bit / stride - 1;
+                if (x >= 0 && x < xExtent && y >= 0 && y < yExtent) {
+                    int cluster = clusterOf(y * xExtent + x);
+                    if (search.dirty[cluster] != search.query) {
+                        search.dirty[cluster] = search.query;
+                        search.dynamic[cluster] = clusterDistances(cluster, search, search.dynamic[cluster], units);
+                    }
+                }
+            }
+        }
+
+        int start = startY * xExtent + startX;
+        int end = endY * xExtent + endX;
+        int startCluster = clusterOf(start);
+        int endCluster = clusterOf(end);
+
+        // connect the goal to the nodes of its cluster
+        search.flood(end, endCluster, units);
+        for (int node = clusterNodes[endCluster]; node < clusterNodes[endCluster + 1]; node++) {
+            search.toEnd[node] = search.localDistance(nodeCell[node]);
+        }
+
+        // and the start, which seeds the search
+        search.flood(start, startCluster, units);
+        int best = Integer.MAX_VALUE;
+        if (startCluster == endCluster && search.localDistance(end) != UNREACHABLE) {
+            best = search.localDistance(end);
+        }
+        for (int node = clusterNodes[startCluster]; node < clusterNodes[startCluster + 1]; node++) {
+            int distance = search.localDistance(nodeCell[node]);
+            if (distance != UNREACHABLE) {
+                search.relax(node, distance, heuristic(node, endX, endY));
+            }
+        }
+
+        while (search.size > 0) {
+            long top = search.poll();
+            int node = (int) top;
+            if ((int) (top >>> 32) >= best) {
+                break;
+            }
+            if (search.closed[node] == search.query) {
+                continue;
+            }
+            search.closed[node] = search.query;
+            int cost = search.cost[node];
+            int cluster = clusterOf(nodeCell[node]);
+            if (cluster == endCluster && search.toEnd[node] != UNREACHABLE) {
+                best = Math.min(best, cost + search.toEnd[node]);
+            }
+
+            for (int i = neighbourStart[node]; i < neighbourStart[node + 1]; i++) {
+                int next = neighbours[i];
+                if (!isUnit(nodeCell[next], units, xExtent)) {
+                    search.relax(next, cost + 1, heuristic(next, endX, endY));
+                }
+            }
+            int first = clusterNodes[cluster];
+            int count = clusterNodes[cluster + 1] - first;
+            int[] distances = search.dirty[cluster] == search.query ? search.dynamic[cluster] : intra[cluster];
+            int row = (node - first) * count;
+            for (int other = 0; other < count; other++) {
+                int distance = distances[row + other];
+                if (distance > 0) {
+                    search.relax(first + other, cost + distance, heuristic(first + other, endX, endY));
+                }
+            }
+        }
+        return best == Integer.MAX_VALUE ? Integer.MAX_VALUE : Math.max(best - 1, 0);
+    }
+
+    private int heuristic(int node, int endX, int endY) {
+        int cell = nodeCell[node];
+        return Math.abs(cell % xExtent - endX) + Math.abs(cell / xExtent - endY);
+    }
+
+    // whether a cell's bit is set in one of GameState's bitsets
+    private static boolean isUnit(int cell, long[] units, int xExtent) {
+        int bit = (cell / xExtent + 1) * (xExtent + 2) + cell % xExtent + 1;
+        return (units[bit >>> 6] & (1L << bit)) != 0;
+    }
+
+    // distances between every pair of the cluster's nodes inside the cluster, around the units if given
+    private int[] clusterDistances(int cluster, Search search, int[] distances, long[] units) {
+        int first = clusterNodes[cluster];
+        int count = clusterNodes[cluster + 1] - first;
+        if (distances == null || distances.length < count * count) {
+            distances = new int[count * count];
+        }
+        for (int from = 0; from < count; from++) {
+            int cell = nodeCell[first + from];
+            boolean free = units == null || !isUnit(cell, units, xExtent);
+            if (free) {
+                search.flood(cell, cluster, units);
+            }
+            for (int to = 0; to < count; to++) {
+                distances[from * count + to] = free ? search.localDistance(nodeCell[first + to]) : UNREACHABLE;
+            }
+        }
+        return distances;
+    }
+
+    /**
+     * The scratch space of one thread's queries, stamped so nothing is cleared between them.
+     */
+    private static class Search {
+        private final HierarchicalPathFinder graph;
+        int query = 0;
+
+        // breadth first search inside one cluster
+        private final int[] localSeen = new int[CLUSTER_SIZE * CLUSTER_SIZE];
+        private final int[] localDistance = new int[CLUSTER_SIZE * CLUSTER_SIZE];
+        private final int[] queue = new int[CLUSTER_SIZE * CLUSTER_SIZE];
+        private int flood = 0;
+        private int floodX0;
+        private int floodY0;
+
+        // A* over the nodes
+        final int[] cost;
+        final int[] costSeen;
+        final int[] closed;
+        final int[] toEnd;
+        private long[] heap = new long[64]; // estimate << 32 | node, a node can be on it more than once
+        int size;
+
+        // clusters with a unit in them this query and their distances around it
+        final int[] dirty;
+        final int[][] dynamic;
+
+        Search(HierarchicalPathFinder graph) {
+            this.graph = graph;
+            int nodes = graph.nodeCell.length;
+            cost = new int[nodes];
+            costSeen = new int[nodes];
+            closed = new int[nodes];
+            toEnd = new int[nodes];
+            dirty = new int[graph.clustersX * graph.clustersY];
+            dynamic = new int[dirty.length][];
+        }
+
+        void begin() {
+            if (++query == Integer.MAX_VALUE) {
+                Arrays.fill(costSeen, 0);
+                Arrays.fill(closed, 0);
+                Arrays.fill(dirty, 0);
+                query = 1;
+            }
+            size = 0;
+        }
+
+        // breadth first search from a cell, without leaving its cluster or stepping on a unit
+        void flood(int from, int cluster, long[] units) {
+            if (++flood == Integer.MAX_VALUE) {
+                Arrays.fill(localSeen, 0);
+                flood = 1;
+            }
+            int xExtent = graph.xExtent;
+            floodX0 = (cluster % graph.clustersX) * CLUSTER_SIZE;
+            floodY0 = (cluster / graph.clustersX) * CLUSTER_SIZE;
+            int width = Math.min(CLUSTER_SIZE, xExtent - floodX0);
+            int height = Math.min(CLUSTER_SIZE, graph.yExtent - floodY0);
+
+            int head = 0;
+            int tail = 0;
+            int local = (from / xExtent - floodY0) * CLUSTER_SIZE + from % xExtent - floodX0;
+            localSeen[local] = flood;
+            localDistance[local] = 0;
+            queue[tail++] = local;
+            while (head < tail) {
+                local = queue[head++];
+                int x = local % CLUSTER_SIZE;
+                int y = local / CLUSTER_SIZE;
+                int next = localDistance[local] + 1;
+                if (x > 0) {
+                    tail = visit(local - 1, next, tail, units);
+                }
+                if (x < width - 1) {
+                    tail = visit(local + 1, next, tail, units);
+                }
+                if (y > 0) {
+                    tail = visit(local - CLUSTER_SIZE, next, tail, units);
+                }
+                if (y < height - 1) {
+                    tail = visit(local + CLUSTER_SIZE, next, tail, units);
+                }
+            }
+        }
+
+        private int visit(int local, int distance, int tail, long[] units) {
+            if (localSeen[local] == flood) {
+                return tail;
+            }
+            int cell = (floodY0 + local / CLUSTER_SIZE) * graph.xExtent + floodX0 + local % CLUSTER_SIZE;
+            if (graph.blocked[cell] || (units != null && isUnit(cell, units, graph.xExtent))) {
+                return tail;
+            }
+            localSeen[local] = flood;
+            localDistance[local] = distance;
+            queue[tail++] = local;
+            return tail;
+        }
+
+        // the last flood's distance to a cell of its cluster, or UNREACHABLE
+        int localDistance(int cell) {
+            int local = (cell / graph.xExtent - floodY0) * CLUSTER_SIZE + cell % graph.xExtent - floodX0;
+            return localSeen[local] == flood ? localDistance[local] : UNREACHABLE;
+        }
+
+        // lowers a node's cost and puts it on the heap again, the stale entry is skipped when it comes up
+        void relax(int node, int distance, int heuristic) {
+            if (closed[node] == query || (costSeen[node] == query && cost[node] <= distance)) {
+                return;
+            }
+            costSeen[node] = query;
+            cost[node] = distance;
+            if (size == heap.length) {
+                heap = Arrays.copyOf(heap, size * 2);
+            }
+            long entry = ((long) (distance + heuristic) << 32) | node;
+            int k = size++;
+            while (k > 0) {
+                int parent = (k - 1) >>> 1;
+                if (entry >= heap[parent]) {
+                    break;
+                }
+                heap[k] = heap[parent];
+                k = parent;
+            }
+            heap[k] = entry;
+        }
+
+        long poll() {
+            long result = heap[0];
+            long last = heap[--size];
+            int k = 0;
+            int half = size >>> 1;
+            while (k < half) {
+                int child = 2 * k + 1;
+                if (child + 1 < size && heap[child + 1] < heap[child]) {
+                    child++;
+                }
+                if (last <= heap[child]) {
+                    break;
+                }
+                heap[k] = heap[child];
+                k = child;
+            }
+            if (size > 0) {
+                heap[k] = last;
+            }
+            return result;
+        }
+    }
+}
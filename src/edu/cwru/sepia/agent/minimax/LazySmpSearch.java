@@ -0,0 +1,121 @@
+package edu.cwru.sepia.agent.minimax;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lazy SMP, the other way of searching on several threads besides ParallelAlphaBeta's splitting
+ * of the tree.
+ *
+ * Every thread runs MinimaxAlphaBeta's ordinary serial search of the whole root, and the threads
+ * never wait for each other. They only share the transposition table, which doesn't lock, and the
+ * move ordering. The calling thread searches the iteration's depth in the usual order and its
+ * result is the one played. The helper threads search the same root a little differently, so they
+ * don't all trace the same path: every other one goes a ply deeper, and the ones after the first
+ * two start from another root move. What they store lets the calling thread skip subtrees, cut off
+ * earlier with better hash moves, and start the next iteration with the deeper helpers' results
+ * already in the table. Once the calling thread finishes, the helpers are called off.
+ *
+ * The values aren't always the same as the serial search's: a bound a helper found with a
+ * different window can cut off a node the serial search would have searched, so which of two
+ * tied moves comes out can differ.
+ */
+class LazySmpSearch {
+
+    private final MinimaxAlphaBeta search; // owns the transposition table, ordering and deadline
+    private final SearchThread main = new SearchThread(); // the calling thread
+    private final SearchThread[] helpers;
+    private final ExecutorService pool; // runs the helpers
+
+    LazySmpSearch(MinimaxAlphaBeta search, int threads) {
+        this.search = search;
+        helpers = new SearchThread[threads - 1];
+        for (int i = 0; i < helpers.length; i++) {
+            helpers[i] = new SearchThread();
+        }
+        pool = Executors.newFixedThreadPool(helpers.length, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "minimax-lazy-smp-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    int getParallelism() {
+        return helpers.length + 1;
+    }
+
+    /**
+     * Same contract as MinimaxAlphaBeta.searchRoot. Starts the helpers on the root, searches it on
+     * the calling thread and stops the helpers again before returning.
+     */
+    GameStateChild searchRoot(GameState state, List<GameStateChild> generated, List<GameStateChild> children,
+                              int depth, double alpha, double beta, MinimaxAlphaBeta.MinimaxState maxOrMin, double[] scores) {
+        List<Future<?>> running = new ArrayList<>(helpers.length);
+        for (int i = 0; i < helpers.length; i++) {
+            running.add(pool.submit(helper(i, state, generated, children, depth, alpha, beta, maxOrMin)));
+        }
+        try {
+            return search.searchRoot(main, state, generated, children, depth, alpha, beta, maxOrMin, scores);
+        } finally {
+            for (SearchThread helper : helpers) {
+                helper.stopped = true;
+            }
+            //The next iteration, or the next turn's table reset, has to find them all stopped
+            for (Future<?> helper : running) {
+                try {
+                    helper.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    throw new RuntimeException("Lazy SMP helper failed", e.getCause());
+                }
+            }
+        }
+    }
+
+    // helper i searches one ply deeper when i is even, and starts from root move i / 2 after the first two
+    private Runnable helper(int i, final GameState state, final List<GameStateChild> generated, final List<GameStateChild> children,
+                            int depth, final double alpha, final double beta, final MinimaxAlphaBeta.MinimaxState maxOrMin) {
+        final SearchThread thread = helpers[i];
+        thread.stopped = false;
+        final int helperDepth = depth + (i % 2 == 0 ? 1 : 0);
+        final int first = (i / 2) % children.size();
+
+        return new Runnable() {
+            @Override
+            public void run() {
+                //Searching makes and unmakes moves on the children's states, so the helper needs its own.
+                //getChildren always comes out in the same order, which the table indexes moves by. The
+                //root and the lists aren't changed while the iteration runs, so they can be read from here.
+                GameState own = state.copy();
+                List<GameStateChild> ownGenerated = own.getChildren();
+                List<GameStateChild> ownChildren = new ArrayList<>(children.size());
+                for (GameStateChild child : children) {
+                    ownChildren.add(ownGenerated.get(generated.indexOf(child)));
+                }
+                ownChildren.add(0, ownChildren.remove(first));
+                try {
+                    search.searchRoot(thread, own, ownGenerated, ownChildren, helperDepth, alpha, beta, maxOrMin,
+                            new double[ownChildren.size()]);
+                } catch (SearchTimeoutException e) {
+                    //called off, or out of time
+                }
+            }
+        };
+    }
+
+    void shutdown() {
+        pool.shutdown();
+    }
+}
@@ -0,0 +1,194 @@
+package edu.cwru.sepia.agent.minimax;
+
+import edu.cwru.sepia.environment.model.state.State;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Everything GameState works out about a map before searching it: the resource cells, the wall
+ * bitset, whether the map is the same mirrored across the diagonal, the Zobrist keys and the
+ * distance table or, on maps too big for one, the cluster graph. None of it changes once built,
+ * so every state of every agent in the process playing the same map shares one instance.
+ *
+ * The instances are kept in one cache for the whole process, keyed by the map's size and
+ * resource cells. A map is built by the first agent that asks for it, and any other agent asking
+ * while it is being built waits for that build rather than starting its own. Other maps can be
+ * looked up and built at the same time. Once the built maps take more than CACHE_BYTES, the ones
+ * used longest ago are dropped, down to the most recent one. A dropped map is built again the
+ * next time a game starts on it. States still using it keep it until they are done.
+ */
+final class MapData {
+
+    static final long CACHE_BYTES = 256L << 20; // a 64x64 map's distance table is 32 MB
+
+    // least recently used first, guarded by itself
+    private static final LinkedHashMap<Key, FutureTask<MapData>> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private static long cachedBytes = 0; // the sum of counted
+    // [key] the size of each cached map its builder has added to cachedBytes, guarded by cache. A build
+    // is done a moment before it is counted, so it's this rather than the FutureTask that says which are.
+    private static final Map<Key, Long> counted = new HashMap<>();
+
+    final int xExtent;
+    final int yExtent;
+    final int stride; // cells per row of walls, the map plus a border column on each side
+    final boolean[] blocked; // [y * xExtent + x] true where a resource node is
+    final long[] walls; // bit per GameState cell set for the resources and the border around the map
+    final long hash; // EndgameTablebase.mapHash of blocked
+    final boolean transposable; // the resources are the same with x and y swapped, see GameState.getZobristKey
+    final ZobristKeys zobrist;
+    final DistanceOracle distances; // null on maps too big to tabulate
+    final HierarchicalPathFinder clusters; // null unless distances is
+    final long sizeInBytes;
+
+    // the map's size and resource cells, what makes two maps the same
+    private static final class Key {
+        final int xExtent;
+        final int yExtent;
+        final boolean[] blocked;
+        final int hash;
+
+        Key(int xExtent, int yExtent, boolean[] blocked) {
+            this.xExtent = xExtent;
+            this.yExtent = yExtent;
+            this.blocked = blocked;
+            this.hash = 31 * (31 * xExtent + yExtent) + Arrays.hashCode(blocked);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return hash == key.hash && xExtent == key.xExtent && yExtent == key.yExtent && Arrays.equals(blocked, key.blocked);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private MapData(int xExtent, int yExtent, boolean[] blocked) {
+        this.xExtent = xExtent;
+        this.yExtent = yExtent;
+        this.blocked = blocked;
+        stride = xExtent + 2;
+        walls = new long[((yExtent + 2) * stride + 63) / 64];
+        //the border counts as a wall so a cell one step off the map needs no bounds check
+        for (int y = -1; y <= yExtent; y++) {
+            for (int x = -1; x <= xExtent; x++) {
+                if (x < 0 || y < 0 || x == xExtent || y == yExtent || blocked[y * xExtent + x]) {
+                    int cell = (y + 1) * stride + x + 1;
+                    walls[cell >>> 6] |= 1L << cell;
+                }
+            }
+        }
+        hash = EndgameTablebase.mapHash(blocked);
+        zobrist = new ZobristKeys(xExtent, yExtent);
+        distances = DistanceOracle.build(xExtent, yExtent, blocked);
+        clusters = distances == null ? new HierarchicalPathFinder(xExtent, yExtent, blocked) : null;
+        //the cluster graph's distances aren't exact, so they needn't be the same both ways
+        transposable = distances != null && isTransposeSymmetric();
+        sizeInBytes = blocked.length + 8L * walls.length + zobrist.sizeInBytes()
+                + (distances != null ? distances.sizeInBytes() : clusters.sizeInBytes());
+    }
+
+    // whether swapping x and y leaves the resources where they are. It's the one symmetry of the
+    // board that maps GameState.MOVES onto itself: north and west swap, east and south swap, northwest stays.
+    private boolean isTransposeSymmetric() {
+        if (xExtent != yExtent) {
+            return false;
+        }
+        for (int y = 0; y < yExtent; y++) {
+            for (int x = 0; x < y; x++) {
+                if (blocked[y * xExtent + x] != blocked[x * xExtent + y]) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the shared data for the map of a state, building it if no agent has yet or it was
+     * dropped from the cache since.
+     */
+    static MapData forMap(State.StateView state) {
+        return forMap(state.getXExtent(), state.getYExtent(), EndgameTablebase.blockedCells(state));
+    }
+
+    /**
+     * @param blocked Cells holding a resource node, indexed y * xExtent + x, not changed afterwards
+     */
+    static MapData forMap(final int xExtent, final int yExtent, final boolean[] blocked) {
+        Key key = new Key(xExtent, yExtent, blocked);
+        FutureTask<MapData> build;
+        boolean building = false;
+        synchronized (cache) {
+            build = cache.get(key);
+            if (build == null) {
+                build = new FutureTask<>(new Callable<MapData>() {
+                    @Override
+                    public MapData call() {
+                        return new MapData(xExtent, yExtent, blocked);
+                    }
+                });
+                cache.put(key, build);
+                building = true;
+            }
+        }
+
+        //built outside the lock so other maps aren't held up behind this one
+        if (building) {
+            build.run();
+        }
+        MapData map;
+        try {
+            map = build.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for the map to be built", e);
+        } catch (ExecutionException e) {
+            synchronized (cache) {
+                //let the next agent try again instead of getting the same failure
+                if (cache.get(key) == build) {
+                    cache.remove(key);
+                }
+            }
+            throw new IllegalStateException("Couldn't build the map", e.getCause());
+        }
+        if (building) {
+            synchronized (cache) {
+                if (cache.get(key) == build) {
+                    cachedBytes += map.sizeInBytes;
+                    counted.put(key, map.sizeInBytes);
+                    evict();
+                }
+            }
+        }
+        return map;
+    }
+
+    // drops the least recently used built maps until the rest fit, always keeping the newest
+    private static void evict() {
+        Iterator<Map.Entry<Key, FutureTask<MapData>>> entries = cache.entrySet().iterator();
+        while (cachedBytes > CACHE_BYTES && cache.size() > 1 && entries.hasNext()) {
+            Key key = entries.next().getKey();
+            //maps not counted yet are left to their builder, which evicts again once it has counted them
+            Long bytes = counted.get(key);
+            if (bytes != null && entries.hasNext()) {
+                cachedBytes -= bytes;
+                counted.remove(key);
+                entries.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package edu.cwru.sepia.agent.minimax;
+
+import edu.cwru.sepia.environment.model.persistence.generated.XmlState;
+import edu.cwru.sepia.environment.model.state.State;
+import edu.cwru.sepia.environment.model.state.XmlStateCreator;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import java.io.File;
+
+/**
+ * Loads the starting state of a SEPIA map file (for example data/Game2fv2a.xml) without running
+ * an episode, so searches can be timed and checked from the command line.
+ */
+public class MapLoader {
+
+    private MapLoader() {
+    }
+
+    /**
+     * @param mapFile Path to a SEPIA state XML file
+     * @param playerNum The player whose view to return, 0 for the footmen
+     * @return The view that player gets on the first turn
+     */
+    public static State.StateView load(String mapFile, int playerNum) throws JAXBException {
+        XmlState xml = (XmlState) JAXBContext.newInstance(XmlState.class).createUnmarshaller().unmarshal(new File(mapFile));
+        State state = new XmlStateCreator(xml).createState();
+        return state.getView(playerNum);
+    }
+}
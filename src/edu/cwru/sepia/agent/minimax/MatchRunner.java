@@ -0,0 +1,250 @@
+package edu.cwru.sepia.agent.minimax;
+
+import edu.cwru.sepia.action.Action;
+import edu.cwru.sepia.agent.Agent;
+import edu.cwru.sepia.agent.visual.VisualAgent;
+import edu.cwru.sepia.environment.Environment;
+import edu.cwru.sepia.environment.model.SimpleModel;
+import edu.cwru.sepia.environment.model.history.History;
+import edu.cwru.sepia.environment.model.persistence.generated.XmlState;
+import edu.cwru.sepia.environment.model.state.State;
+import edu.cwru.sepia.environment.model.state.StateCreator;
+import edu.cwru.sepia.environment.model.state.XmlStateCreator;
+import edu.cwru.sepia.experiment.Configuration;
+import edu.cwru.sepia.experiment.ConfigurationValues;
+import edu.cwru.sepia.util.config.xml.XmlAgentParameters;
+import edu.cwru.sepia.util.config.xml.XmlConfiguration;
+import edu.cwru.sepia.util.config.xml.XmlKeyValuePair;
+import edu.cwru.sepia.util.config.xml.XmlModelParameters;
+
+import javax.xml.bind.JAXBContext;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Plays many episodes of a game config at once without the GUI and reports how the footmen did:
+ *
+ * win rate: episodes where every archer died
+ * turns to win: the mean and median number of steps the wins took
+ * turn latency: the 50th, 95th and 99th percentile time MinimaxAlphaBeta takes to pick a move over
+ *               every turn, the first turn's initialStep included
+ *
+ * Every episode builds its own state, model and agents from the config the same way Main2 does,
+ * and is driven step by step on one of the worker threads. Observers like the VisualAgent the
+ * shipped configs add are left out, so nothing opens a window. Nothing is written to saves/. The
+ * episodes only differ in the model's random seed, which decides how much damage each attack does,
+ * so a single run through Main2 is one sample of these.
+ *
+ * Each agent runs its search on its own threads on top of these, so with a threads option in the
+ * config the cores are shared between the episodes and the latencies go up accordingly.
+ *
+ * Usage: MatchRunner config.xml [episodes] [threads]
+ * e.g. java -cp lib/Sepia.jar:archer_agent:<compiled classes> edu.cwru.sepia.agent.minimax.MatchRunner data/GameConfig2fv2a.xml 20 4
+ */
+public class MatchRunner {
+
+    private static final int FOOTMEN = 0;
+    private static final int ARCHERS = 1;
+    private static final int FIRST_SEED = 6; // the seed SimpleModelEpisodicRunner always uses, so episode 0 plays like Main2
+
+    // how one episode went
+    private static class Result {
+        boolean won;
+        int steps;
+        List<Long> latencies = new ArrayList<>(); // nanoseconds of each of MinimaxAlphaBeta's turns
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: MatchRunner config.xml [episodes] [threads]");
+            System.exit(1);
+        }
+        final XmlConfiguration config = (XmlConfiguration) JAXBContext.newInstance(XmlConfiguration.class)
+                .createUnmarshaller().unmarshal(new File(args[0]));
+        int episodes = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+        final XmlState map = (XmlState) JAXBContext.newInstance(XmlState.class).createUnmarshaller()
+                .unmarshal(new File(config.getMap()));
+
+        long start = System.nanoTime();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<Result>> futures = new ArrayList<>();
+        for (int episode = 0; episode < episodes; episode++) {
+            final int seed = FIRST_SEED + episode;
+            futures.add(pool.submit(new Callable<Result>() {
+                @Override
+                public Result call() throws Exception {
+                    return runEpisode(config, map, seed);
+                }
+            }));
+        }
+        List<Result> results = new ArrayList<>();
+        for (Future<Result> future : futures) {
+            results.add(future.get());
+        }
+        pool.shutdown();
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        List<Integer> turnsToWin = new ArrayList<>();
+        List<Long> latencies = new ArrayList<>();
+        for (Result result : results) {
+            if (result.won) {
+                turnsToWin.add(result.steps);
+            }
+            latencies.addAll(result.latencies);
+        }
+        Collections.sort(turnsToWin);
+        Collections.sort(latencies);
+
+        System.out.printf("episodes: %d on %d threads in %.1f s%n", episodes, threads, elapsed);
+        System.out.printf("win rate: %.1f%% (%d/%d)%n", 100.0 * turnsToWin.size() / episodes, turnsToWin.size(), episodes);
+        if (!turnsToWin.isEmpty()) {
+            double sum = 0;
+            for (int turns : turnsToWin) {
+                sum += turns;
+            }
+            System.out.printf("turns to win: mean %.1f, median %d, min %d, max %d%n", sum / turnsToWin.size(),
+                    turnsToWin.get(turnsToWin.size() / 2), turnsToWin.get(0), turnsToWin.get(turnsToWin.size() - 1));
+        }
+        if (!latencies.isEmpty()) {
+            System.out.printf("turn latency (%d turns): p50 %.2f ms, p95 %.2f ms, p99 %.2f ms, max %.2f ms%n", latencies.size(),
+                    percentile(latencies, 50) / 1e6, percentile(latencies, 95) / 1e6, percentile(latencies, 99) / 1e6,
+                    latencies.get(latencies.size() - 1) / 1e6);
+        }
+        //SEPIA leaves a thread per agent waiting for its next turn, like Main2 exit rather than wait on them
+        System.exit(0);
+    }
+
+    // nearest rank percentile of a sorted list
+    private static long percentile(List<Long> sorted, int percent) {
+        int rank = (int) Math.ceil(percent / 100.0 * sorted.size());
+        return sorted.get(Math.max(rank - 1, 0));
+    }
+
+    // plays one episode to the end on the calling thread
+    private static Result runEpisode(XmlConfiguration config, XmlState map, int seed) throws Exception {
+        StateCreator stateCreator = new XmlStateCreator(map);
+        Result result = new Result();
+
+        List<Agent> players = new ArrayList<>();
+        for (XmlAgentParameters player : config.getPlayer()) {
+            if (isObserver(player)) {
+                continue;
+            }
+            Agent agent = createAgent(player);
+            players.add(agent instanceof MinimaxAlphaBeta ? new TimedAgent(agent, result.latencies) : agent);
+        }
+        Agent[] agents = players.toArray(new Agent[0]);
+
+        SimpleModel model = new SimpleModel(stateCreator.createState(), seed, stateCreator, modelParameters(config));
+        Environment environment = new Environment(agents, model, seed);
+        try {
+            //What Environment.runEpisode does, which can't be used since it hides the steps
+            environment.forceNewEpisode();
+            while (!environment.isTerminated()) {
+                environment.step();
+            }
+            environment.terminalStep();
+        } finally {
+            for (Agent agent : agents) {
+                Agent inner = agent instanceof TimedAgent ? ((TimedAgent) agent).agent : agent;
+                if (inner instanceof MinimaxAlphaBeta) {
+                    ((MinimaxAlphaBeta) inner).shutdown();
+                }
+            }
+        }
+
+        State.StateView end = model.getState().getView(Agent.OBSERVER_ID);
+        result.won = end.getUnitIds(ARCHERS).isEmpty() && !end.getUnitIds(FOOTMEN).isEmpty();
+        result.steps = end.getTurnNumber(); // steps the model played, initialStep's included, one more than ArcherAgent prints
+        return result;
+    }
+
+    // agents that only watch the game, a VisualAgent would open a window every episode or fail without a display
+    private static boolean isObserver(XmlAgentParameters player) throws ClassNotFoundException {
+        Class<?> agentClass = Class.forName(player.getAgentClass().getClassName());
+        return VisualAgent.class.isAssignableFrom(agentClass);
+    }
+
+    // the same constructor lookup Main2 uses, an (int, String[]) constructor or else an (int) one
+    private static Agent createAgent(XmlAgentParameters player) throws Exception {
+        Class<?> agentClass = Class.forName(player.getAgentClass().getClassName());
+        String[] arguments = player.getAgentClass().getArgument().toArray(new String[0]);
+        try {
+            return (Agent) agentClass.getConstructor(int.class, String[].class).newInstance(player.getId(), arguments);
+        } catch (NoSuchMethodException e) {
+            return (Agent) agentClass.getConstructor(int.class).newInstance(player.getId());
+        }
+    }
+
+    // the config's model parameters as the Configuration SimpleModel reads them
+    private static Configuration modelParameters(XmlConfiguration config) {
+        Configuration configuration = new Configuration();
+        XmlModelParameters parameters = config.getModelParameters();
+        configuration.put(ConfigurationValues.MODEL_CONQUEST.key, parameters.isConquest());
+        configuration.put(ConfigurationValues.MODEL_MIDAS.key, parameters.isMidas());
+        configuration.put(ConfigurationValues.MODEL_MANIFEST_DESTINY.key, parameters.isManifestDestiny());
+        configuration.put(ConfigurationValues.MODEL_TIME_LIMIT.key, parameters.getTimeLimit());
+        for (XmlKeyValuePair requirement : parameters.getRequirement()) {
+            configuration.put(requirement.getName(), requirement.getValue());
+        }
+        return configuration;
+    }
+
+    /**
+     * Passes everything through to another agent, timing its initialStep and middleSteps.
+     */
+    private static class TimedAgent extends Agent {
+        private static final long serialVersionUID = 1L;
+
+        private final Agent agent;
+        private final List<Long> latencies;
+
+        TimedAgent(Agent agent, List<Long> latencies) {
+            super(agent.getPlayerNumber());
+            this.agent = agent;
+            this.latencies = latencies;
+        }
+
+        @Override
+        public Map<Integer, Action> initialStep(State.StateView newstate, History.HistoryView statehistory) {
+            long start = System.nanoTime();
+            Map<Integer, Action> actions = agent.initialStep(newstate, statehistory);
+            latencies.add(System.nanoTime() - start);
+            return actions;
+        }
+
+        @Override
+        public Map<Integer, Action> middleStep(State.StateView newstate, History.HistoryView statehistory) {
+            long start = System.nanoTime();
+            Map<Integer, Action> actions = agent.middleStep(newstate, statehistory);
+            latencies.add(System.nanoTime() - start);
+            return actions;
+        }
+
+        @Override
+        public void terminalStep(State.StateView newstate, History.HistoryView statehistory) {
+            agent.terminalStep(newstate, statehistory);
+        }
+
+        @Override
+        public void savePlayerData(OutputStream os) {
+            agent.savePlayerData(os);
+        }
+
+        @Override
+        public void loadPlayerData(InputStream is) {
+            agent.loadPlayerData(is);
+        }
+    }
+}
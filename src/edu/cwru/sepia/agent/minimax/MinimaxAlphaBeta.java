@@ -5,18 +5,90 @@ import edu.cwru.sepia.agent.Agent;
 import edu.cwru.sepia.environment.model.history.History;
 import edu.cwru.sepia.environment.model.state.State;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
 
 public class MinimaxAlphaBeta extends Agent {
 
+    private static final long serialVersionUID = 1L;
+
     public enum MinimaxState {
         MIN, MAX
     }
 
-    private final int numPlys;
+    private static final int DEFAULT_TABLE_MEGABYTES = 64;
+    private static final int PERSIST_DEPTH = 2; // shallowest result worth writing to the persistent table, the rest are cheap to search again
+    private static final int PLAYER_DATA_MAGIC = 0x53455041; // starts what savePlayerData writes
+    private static final int DEFAULT_PLAYOUTS = 2000; // Monte Carlo playouts per turn when there is no time budget
+    static final double ENDGAME_WIN = 1000000; // value of a tablebase win for the footmen, beyond any utility, less the plys it takes
+    private static final double ASPIRATION_WINDOW = 16; // half width of the first window around the last iteration's score
+
+    private final int numPlys; // the deepest iteration searched each turn
+    private final long timeBudget; // nanoseconds per turn, 0 to always search to numPlys
+    final TranspositionTable table;
+    private final SearchThread serial = new SearchThread(); // the calling thread's serial search
+    private String tableFile; // persistent transposition table to map on the first turn, or null
+    private final int tableFileMegabytes;
+    PersistentTranspositionTable persistent; // the mapped persistent table, null without one
+    private final ParallelAlphaBeta parallel; // null unless splitting the tree between threads
+    private final LazySmpSearch lazySmp; // null unless searching the whole tree on every thread
+    private final MonteCarloSearch monteCarlo; // null unless searching with Monte Carlo tree search
+    final MoveOrdering ordering = new MoveOrdering(); // killer moves and history, shared by every search thread
+    volatile int rootDepth; // depth of the iteration being searched, so the parallel search's nodes can work out their ply
+    final boolean pvs; // principal variation search with aspiration windows instead of plain alpha beta
+    final LongAdder nodes = new LongAdder(); // states searched this turn, for comparing modes
+    private final boolean ponder; // whether to keep searching in the background during the archers' turn
+    private Thread ponderThread; // the running background search, null when not pondering
+    private volatile boolean stopPonder = false; // tells the background search to give up
+    private final String tablebaseFile; // endgame tablebase to load on the first turn, or null
+    EndgameTablebase tablebase; // the loaded tablebase if it fits the map, otherwise null
+    final LongAdder tablebaseHits = new LongAdder(); // positions this turn the tablebase had a result for
+    private final String statsFormat; // csv or json to print a line of search statistics every turn, or null
+    volatile SearchStats stats; // this turn's statistics, null unless something wants them
+    private int turn = 0;
+    private int completedDepth; // deepest iteration finished this turn
+
+    private volatile boolean timed = false; // whether the current search has a deadline
+    private volatile long deadline; // System.nanoTime() after which the current iteration is abandoned
 
+    /**
+     * The first argument is the number of plys. Any others are optional name=value settings:
+     *
+     * timeMs: wall-clock budget per turn. The search deepens one ply at a time until numPlys or
+     *         the budget runs out and plays the best move of the last depth it finished.
+     * ttMb: memory budget of the transposition table
+     * ttFile: a file to keep a second transposition table in between episodes and runs. It is
+     *         memory mapped, so a big one costs nothing to open, and is started over whenever it
+     *         was made for a different map. Results a few plys deep are written to it as the
+     *         search goes, so playing the same GameConfig again finds them already searched.
+     *         savePlayerData records the file and loadPlayerData picks it up again.
+     * ttFileMb: size of the ttFile table
+     * threads: number of threads for the parallel search, 1 to search serially
+     * parallel: ybw (the default) to split the tree between the threads with Young Brothers Wait,
+     *           or lazy for Lazy SMP, where every thread searches the whole tree a little
+     *           differently and they only share the transposition table
+     * mode: alphabeta (the default), pvs for principal variation search or mcts for Monte Carlo
+     *       tree search. PVS searches every move after the first with a null window and only
+     *       re-searches the ones that fail high, and starts each iteration with a narrow window
+     *       around the previous iteration's score, with either parallel search as well as serially.
+     *       MCTS plays out moves until timeMs runs out, on
+     *       as many threads as the threads setting, and ignores numPlys.
+     * playouts: the number of MCTS playouts per turn when there is no timeMs
+     * ponder: true to keep searching the archers' possible replies to our move on a background
+     *         thread until the next turn starts. The next search finds those results in the
+     *         transposition table, so its shallow iterations cost next to nothing.
+     * tablebase: a file from TablebaseGenerator for this map. Positions down to one footman and
+     *            one archer that it says the footman wins are scored from it instead of searched.
+     * stats: csv or json to print a line per turn with the nodes searched per ply, cutoffs by
+     *        child index, effective branching factor, nodes per second and where the time went.
+     *        The same numbers are recorded as a JFR event whenever a flight recording is running.
+     */
     public MinimaxAlphaBeta(int playernum, String[] args)
     {
         super(playernum);
@@ -28,39 +100,328 @@ public class MinimaxAlphaBeta extends Agent {
         }
 
         numPlys = Integer.parseInt(args[0]);
+        timeBudget = Long.parseLong(option(args, "timeMs", "0")) * 1000000L;
+        table = new TranspositionTable(Integer.parseInt(option(args, "ttMb", String.valueOf(DEFAULT_TABLE_MEGABYTES))));
+        tableFile = option(args, "ttFile", null);
+        tableFileMegabytes = Integer.parseInt(option(args, "ttFileMb", String.valueOf(DEFAULT_TABLE_MEGABYTES)));
+        int threads = Integer.parseInt(option(args, "threads", "1"));
+
+        String mode = option(args, "mode", "alphabeta");
+        if (!mode.equals("alphabeta") && !mode.equals("pvs") && !mode.equals("mcts")) {
+            System.err.println("Unknown search mode " + mode + ", use alphabeta, pvs or mcts");
+            System.exit(1);
+        }
+        pvs = mode.equals("pvs");
+        if (mode.equals("mcts")) {
+            int playouts = Integer.parseInt(option(args, "playouts", String.valueOf(DEFAULT_PLAYOUTS)));
+            monteCarlo = new MonteCarloSearch(this, threads, playouts);
+            parallel = null;
+            lazySmp = null;
+        } else {
+            monteCarlo = null;
+            String split = option(args, "parallel", "ybw");
+            if (!split.equals("ybw") && !split.equals("lazy")) {
+                System.err.println("Unknown parallel search " + split + ", use ybw or lazy");
+                System.exit(1);
+            }
+            parallel = threads > 1 && split.equals("ybw") ? new ParallelAlphaBeta(this, threads) : null;
+            lazySmp = threads > 1 && split.equals("lazy") ? new LazySmpSearch(this, threads) : null;
+        }
+        //Pondering fills the transposition table, which MCTS doesn't use
+        ponder = monteCarlo == null && Boolean.parseBoolean(option(args, "ponder", "false"));
+        tablebaseFile = option(args, "tablebase", null);
+        statsFormat = option(args, "stats", null);
+        if (statsFormat != null && !statsFormat.equals("csv") && !statsFormat.equals("json")) {
+            System.err.println("Unknown stats format " + statsFormat + ", use csv or json");
+            System.exit(1);
+        }
+    }
+
+    //Finds a name=value argument, the first argument is always the number of plys
+    private static String option(String[] args, String name, String defaultValue) {
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].startsWith(name + "=")) {
+                return args[i].substring(name.length() + 1).trim();
+            }
+        }
+        return defaultValue;
     }
 
     @Override
     public Map<Integer, Action> initialStep(State.StateView newstate, History.HistoryView statehistory) {
+        if (tablebaseFile != null) {
+            try {
+                tablebase = EndgameTablebase.open(new File(tablebaseFile), newstate);
+            } catch (IOException e) {
+                System.err.println("Couldn't read the tablebase " + tablebaseFile + ": " + e.getMessage());
+            }
+        }
+        //MCTS has no use for it. The values depend on whether the tablebase scored any of them
+        if (tableFile != null && monteCarlo == null && (persistent == null || !persistent.getFile().equals(new File(tableFile)))) {
+            try {
+                persistent = PersistentTranspositionTable.open(new File(tableFile), tableFileMegabytes, newstate,
+                        tablebase != null ? PersistentTranspositionTable.TABLEBASE : 0);
+            } catch (IOException e) {
+                System.err.println("Couldn't map the transposition table file " + tableFile + ": " + e.getMessage());
+                tableFile = null;
+            }
+        }
         return middleStep(newstate, statehistory);
     }
 
     @Override
     public Map<Integer, Action> middleStep(State.StateView newstate, History.HistoryView statehistory) {
-        GameStateChild bestChild = alphaBetaSearch(new GameStateChild(newstate),
-                numPlys,
-                Double.NEGATIVE_INFINITY,
-                Double.POSITIVE_INFINITY,
-                MinimaxState.MAX);
+        stopPondering();
+        table.resetCounters();
+        if (persistent != null) {
+            persistent.resetCounters();
+        }
+        nodes.reset();
+        tablebaseHits.reset();
+        ordering.newTurn();
+        turn++;
+        if (statsFormat != null || SearchStats.isEventEnabled()) {
+            stats = new SearchStats();
+        }
+        GameStateChild root = new GameStateChild(newstate);
+        root.state.stats = stats;
+        GameStateChild bestChild;
+        if (monteCarlo != null) {
+            bestChild = monteCarlo.search(root, timeBudget);
+            completedDepth = monteCarlo.getDeepest();
+        } else {
+            bestChild = iterativeDeepening(root);
+        }
 
+        if (stats != null) {
+            if (statsFormat != null && turn == 1 && statsFormat.equals("csv")) {
+                System.out.println(SearchStats.csvHeader());
+            }
+            String line = stats.finish(turn, completedDepth, statsFormat);
+            if (line != null) {
+                System.out.println(line);
+            }
+            stats = null;
+        }
 
+        if (verbose) {
+            System.out.println(nodes.sum() + " nodes searched, " + tablebaseHits.sum() + " found in the tablebase");
+            System.out.println(table);
+            if (persistent != null) {
+                System.out.println(persistent);
+            }
+        }
 
+        //No moves at all, the game is over
+        if (bestChild.action == null) {
+            return new HashMap<Integer, Action>();
+        }
+        if (ponder) {
+            startPondering(bestChild.state);
+        }
         return bestChild.action;
     }
 
+    /**
+     * Starts searching the state our move leads to, where it's the archers' turn, on a daemon
+     * thread. Iteration d leaves the states after each archer reply in the table at depth d - 1,
+     * exactly what the next turn's iteration d - 1 looks up for its root's children, so it goes up
+     * to numPlys + 1.
+     *
+     * @param state The state after our chosen move, owned by the background search from now on
+     */
+    private void startPondering(final GameState state) {
+        state.stats = null;
+        stopPonder = false;
+        ponderThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                SearchThread thread = new SearchThread();
+                try {
+                    for (int depth = 2; depth <= numPlys + 1; depth++) {
+                        thread.rootDepth = depth;
+                        alphaBetaValue(state, depth, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, MinimaxState.MIN, thread);
+                    }
+                } catch (SearchTimeoutException e) {
+                    //the real state arrived
+                }
+            }
+        }, "minimax-ponder");
+        ponderThread.setDaemon(true);
+        ponderThread.start();
+    }
+
+    //Stops the background search and waits for it so the real one has the table and move ordering to itself
+    private void stopPondering() {
+        if (ponderThread == null) {
+            return;
+        }
+        stopPonder = true;
+        try {
+            ponderThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (verbose) {
+            System.out.println("Pondered " + nodes.sum() + " nodes");
+        }
+        ponderThread = null;
+        stopPonder = false;
+    }
+
+    /**
+     * Searches the root at depth 1, 2, 3, ... up to numPlys, stopping early when the turn's time
+     * budget runs out. Each iteration tries the root moves in the order of the scores the previous
+     * iteration gave them, so the old best move is searched first and sets a tight bound.
+     *
+     * @param root The current state of the game
+     * @return The best child found by the deepest completed iteration, the first child in heuristic
+     *         order if none completed, or the root itself if there are no moves
+     */
+    private GameStateChild iterativeDeepening(GameStateChild root) {
+        long start = System.nanoTime();
+        completedDepth = 0;
+        List<GameStateChild> generated = root.state.getChildren();
+        if (stats != null) {
+            stats.generateTime.add(System.nanoTime() - start);
+        }
+        if (generated.size() == 0) {
+            return root;
+        }
+        List<GameStateChild> children = orderChildren(generated, hashMove(root.state, serial.entry));
+        double[] scores = new double[children.size()];
+
+        GameStateChild best = null;
+        double score = 0;
+        for (int depth = 1; depth <= numPlys; depth++) {
+            //Depth 1 always finishes so there is a move to play
+            timed = timeBudget > 0 && depth > 1;
+            deadline = start + timeBudget;
+            double alpha = Double.NEGATIVE_INFINITY;
+            double beta = Double.POSITIVE_INFINITY;
+            if (pvs && best != null) {
+                alpha = score - ASPIRATION_WINDOW;
+                beta = score + ASPIRATION_WINDOW;
+            }
+            try {
+                //A score outside the window is only a bound, search again with that side opened up
+                while (true) {
+                    GameStateChild result = searchRoot(root.state, generated, children, depth, alpha, beta, MinimaxState.MAX, scores);
+                    double value = scores[children.indexOf(result)];
+                    if (value <= alpha && alpha != Double.NEGATIVE_INFINITY) {
+                        alpha = Double.NEGATIVE_INFINITY;
+                    } else if (value >= beta && beta != Double.POSITIVE_INFINITY) {
+                        beta = Double.POSITIVE_INFINITY;
+                    } else {
+                        best = result;
+                        score = value;
+                        completedDepth = depth;
+                        break;
+                    }
+                }
+            } catch (SearchTimeoutException e) {
+                break;
+            } finally {
+                timed = false;
+            }
+            if (stats != null) {
+                stats.iterationDone();
+            }
+            if (verbose) {
+                System.out.println("Depth " + depth + " done after " + (System.nanoTime() - start) / 1000000 + " ms");
+            }
+
+            children = orderByScores(children, scores);
+            //The next iteration takes several times longer than this one, don't start what can't finish
+            if (timeBudget > 0 && System.nanoTime() - start > timeBudget / 2) {
+                break;
+            }
+        }
+        //numPlys 0, or the first iteration was cut short, still plays the move that looks best
+        return best != null ? best : children.get(0);
+    }
+
+    //Reorders the root children best score first, keeping the old order between equal scores
+    private static List<GameStateChild> orderByScores(final List<GameStateChild> children, final double[] scores) {
+        Integer[] order = new Integer[children.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Double.compare(scores[b], scores[a]);
+            }
+        });
+        List<GameStateChild> ordered = new ArrayList<>(children.size());
+        for (Integer index : order) {
+            ordered.add(children.get(index));
+        }
+        return ordered;
+    }
+
     @Override
     public void terminalStep(State.StateView newstate, History.HistoryView statehistory) {
+        stopPondering();
+        if (persistent != null) {
+            persistent.flush();
+        }
+    }
 
+    //Stops the background search and the parallel search's worker threads
+    void shutdown() {
+        stopPondering();
+        if (parallel != null) {
+            parallel.shutdown();
+        }
+        if (lazySmp != null) {
+            lazySmp.shutdown();
+        }
+        if (monteCarlo != null) {
+            monteCarlo.shutdown();
+        }
     }
 
+    /**
+     * Saves where the persistent transposition table is rather than the table itself, which is
+     * already in its file, so saving and loading don't take longer as it fills up.
+     */
     @Override
     public void savePlayerData(OutputStream os) {
-
+        DataOutputStream out = new DataOutputStream(os);
+        try {
+            out.writeInt(PLAYER_DATA_MAGIC);
+            if (persistent != null) {
+                persistent.flush();
+            }
+            out.writeBoolean(tableFile != null);
+            if (tableFile != null) {
+                out.writeUTF(new File(tableFile).getAbsolutePath());
+            }
+            out.flush();
+        } catch (IOException e) {
+            System.err.println("Couldn't save the agent: " + e.getMessage());
+        }
     }
 
+    /**
+     * Picks up the persistent transposition table savePlayerData recorded. It gets mapped at the
+     * start of the next episode, when the map is known.
+     */
     @Override
     public void loadPlayerData(InputStream is) {
-
+        DataInputStream in = new DataInputStream(is);
+        try {
+            if (in.readInt() != PLAYER_DATA_MAGIC) {
+                System.err.println("Not data saved by MinimaxAlphaBeta, ignoring it");
+                return;
+            }
+            if (in.readBoolean()) {
+                tableFile = in.readUTF();
+            }
+        } catch (IOException e) {
+            System.err.println("Couldn't load the agent: " + e.getMessage());
+        }
     }
 
     /**
@@ -80,70 +441,316 @@ public class MinimaxAlphaBeta extends Agent {
      */
     public GameStateChild alphaBetaSearch(GameStateChild node, int depth, double alpha, double beta, MinimaxState maxOrMin)
     {
-        List<GameStateChild> children = node.state.getChildren();
-        if (children.size() == 0 || depth == 0) {
+        if (depth == 0) {
+            return node;
+        }
+        List<GameStateChild> generated = node.state.getChildren();
+        if (generated.size() == 0) {
             return node;
         }
 
-        //Orders the children in heuristic order for pruning
-        children = orderChildrenWithHeuristics(children);
+        //Orders the children in heuristic order for pruning, trying the remembered best move first
+        List<GameStateChild> children = orderChildren(generated, hashMove(node.state, serial.entry));
+        return searchRoot(node.state, generated, children, depth, alpha, beta, maxOrMin, new double[children.size()]);
+    }
 
+    /**
+     * Searches the children of the root in the given order.
+     *
+     * Every child after the first is searched with a window one step wider than the best value so
+     * far. A child that ties the best move then comes back with its exact value rather than a bound,
+     * so ties are broken on real values and the serial and parallel searches pick the same move.
+     *
+     * @param generated The children in getChildren order, which is what the transposition table indexes moves by
+     * @param children The same children in the order to search them
+     * @param scores Filled with the value of each child in children, or a bound on it when it was pruned
+     * @return The best child
+     */
+    private GameStateChild searchRoot(GameState state, List<GameStateChild> generated, List<GameStateChild> children,
+                                      int depth, double alpha, double beta, MinimaxState maxOrMin, double[] scores)
+    {
+        rootDepth = depth;
+        if (parallel != null) {
+            return parallel.searchRoot(state, generated, children, depth, alpha, beta, maxOrMin, scores);
+        }
+        if (lazySmp != null) {
+            return lazySmp.searchRoot(state, generated, children, depth, alpha, beta, maxOrMin, scores);
+        }
+        return searchRoot(serial, state, generated, children, depth, alpha, beta, maxOrMin, scores);
+    }
 
-        //Pruning when on a max branch
-        if (maxOrMin == MinimaxState.MAX) {
-            //Keep a reference for what you're actually returning and your comparison
-            GameStateChild v = null;
-            GameStateChild realV = null;
-            //Iterates through all children
-            for(int i = 0; i < children.size(); i++) {
-                //Backing up values
-                GameStateChild vPrime = alphaBetaSearch(children.get(i), depth - 1, alpha, beta, MinimaxState.MIN);
-                //Backs up the value if it's bigger
-                if(v == null || vPrime.state.getUtility() > v.state.getUtility()) {
-                    v = vPrime;
-                    realV = children.get(i);
+    /**
+     * The serial search of the root's children, with the given thread's probe results and stop
+     * flag. Lazy SMP runs one on each of its threads.
+     */
+    GameStateChild searchRoot(SearchThread thread, GameState state, List<GameStateChild> generated, List<GameStateChild> children,
+                              int depth, double alpha, double beta, MinimaxState maxOrMin, double[] scores)
+    {
+        thread.rootDepth = depth;
+        if (stats != null) {
+            stats.node(0);
+        }
+        double alphaOrig = alpha;
+        double betaOrig = beta;
+        double[] values = new double[children.size()];
+        int searched = 0;
+        while (searched < children.size()) {
+            GameStateChild child = children.get(searched);
+            double value = alphaBetaValue(child.state, depth - 1, Math.nextDown(alpha), Math.nextUp(beta), opposite(maxOrMin), thread);
+            values[searched++] = value;
+            //Moves alpha or beta if it's necessary
+            if (maxOrMin == MinimaxState.MAX) {
+                alpha = Math.max(alpha, value);
+            } else {
+                beta = Math.min(beta, value);
+            }
+            //Breaks when there is no possible range of numbers
+            if (beta <= alpha) {
+                if (stats != null) {
+                    stats.cutoff(searched - 1);
                 }
-                //Moves alpha if it's necessary
-                if (v.state.getUtility() > alpha)
-                {
-                    alpha = v.state.getUtility();
+                break;
+            }
+        }
+
+        int best = pickBest(children, values, searched, maxOrMin);
+        fillScores(values, searched, maxOrMin, scores);
+        store(state, depth, values[best], alphaOrig, betaOrig, generated.indexOf(children.get(best)));
+        return children.get(best);
+    }
+
+    /**
+     * Chooses the best of the first count children. When the search can't tell two moves apart
+     * the one that looks better right now wins so the footmen keep advancing, and after that the
+     * one searched first.
+     *
+     * @return The index of the best child
+     */
+    static int pickBest(List<GameStateChild> children, double[] values, int count, MinimaxState maxOrMin) {
+        int best = 0;
+        for (int i = 1; i < count; i++) {
+            if (maxOrMin == MinimaxState.MAX ? values[i] > values[best] : values[i] < values[best]) {
+                best = i;
+            } else if (values[i] == values[best] && isBetter(children.get(i), children.get(best), maxOrMin)) {
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    //Scores are kept from the maximizer's side so the best root move always sorts first, children that were never searched go last
+    static void fillScores(double[] values, int count, MinimaxState maxOrMin, double[] scores) {
+        for (int i = 0; i < scores.length; i++) {
+            if (i >= count) {
+                scores[i] = Double.NEGATIVE_INFINITY;
+            } else {
+                scores[i] = maxOrMin == MinimaxState.MAX ? values[i] : -values[i];
+            }
+        }
+    }
+
+    /**
+     * The recursive part of the search. Works like alphaBetaSearch but returns the backed up value
+     * of the state instead of its best child, which is what the transposition table stores.
+     *
+     * @param state The state to search from
+     * @param depth The remaining number of plys under this state
+     * @param alpha The current best value for the maximizing node from this node to the root
+     * @param beta The current best value for the minimizing node from this node to the root
+     * @param thread The thread running the search
+     * @return The minimax value of the state, or a bound on it if the window was too narrow
+     */
+    private double alphaBetaValue(GameState state, int depth, double alpha, double beta, MinimaxState maxOrMin, SearchThread thread)
+    {
+        checkDeadline();
+        if (thread.stopped) {
+            throw SearchTimeoutException.INSTANCE;
+        }
+        nodes.increment();
+        int ply = thread.rootDepth - depth;
+        SearchStats stats = this.stats;
+        if (stats != null) {
+            stats.node(ply);
+        }
+        double endgame = probeEndgame(state);
+        if (!Double.isNaN(endgame)) {
+            return endgame;
+        }
+        if (depth == 0) {
+            return state.getUtility();
+        }
+
+        //Reuse anything already known about this state from a search to the same depth
+        int hashMove = TranspositionTable.NO_MOVE;
+        TranspositionTable.Entry entry = thread.entry;
+        if (probe(state, depth, entry)) {
+            hashMove = entry.move;
+            if (entry.depth == depth) {
+                double value = entry.value;
+                if (entry.bound == TranspositionTable.EXACT) {
+                    return value;
+                } else if (entry.bound == TranspositionTable.LOWER) {
+                    alpha = Math.max(alpha, value);
+                } else {
+                    beta = Math.min(beta, value);
                 }
-                //Breaks when there is no possible range of numbers
-                if (beta <= alpha)
-                {
-                    break;
+                if (beta <= alpha) {
+                    return value;
                 }
             }
-            //Returns the actual current object
-            return realV;
         }
 
-        //For the enemy case
-        if (maxOrMin == MinimaxState.MIN) {
-            GameStateChild v = null;
-            GameStateChild realV = null;
-            for(int i = 0; i < children.size(); i++) {
-                GameStateChild vPrime = alphaBetaSearch(children.get(i), depth - 1, alpha, beta, MinimaxState.MAX);
-                //Backs up the smaller value
-                if(v == null || vPrime.state.getUtility() < v.state.getUtility()) {
-                    v = vPrime;
-                    realV = children.get(i);
-                }
-                //Moves beta up if necessary
-                if (v.state.getUtility() < beta)
-                {
-                    beta = v.state.getUtility();
+        //Children are searched by playing each move on this state and taking it back afterwards,
+        //generated and scored a stage at a time so a cutoff skips the moves after it
+        MovePicker picker = new MovePicker(state, hashMove, ordering, ply);
+        double alphaOrig = alpha;
+        double betaOrig = beta;
+        int best = -1;
+        double bestValue = 0;
+        int searched = 0;
+        for (int move = picker.next(); move >= 0; move = picker.next()) {
+            searched++;
+            double value;
+            state.makeMove(picker.move());
+            try {
+                if (pvs && best >= 0) {
+                    //Null window, only finds out whether the move beats the best so far
+                    if (maxOrMin == MinimaxState.MAX) {
+                        value = alphaBetaValue(state, depth - 1, alpha, Math.nextUp(alpha), opposite(maxOrMin), thread);
+                    } else {
+                        value = alphaBetaValue(state, depth - 1, Math.nextDown(beta), beta, opposite(maxOrMin), thread);
+                    }
+                    //It does, so its real value is needed
+                    if (value > alpha && value < beta) {
+                        value = alphaBetaValue(state, depth - 1, alpha, beta, opposite(maxOrMin), thread);
+                    }
+                } else {
+                    value = alphaBetaValue(state, depth - 1, alpha, beta, opposite(maxOrMin), thread);
                 }
-                //Breaks if overlap
-                if (beta <= alpha)
-                {
-                    break;
+            } finally {
+                state.unmakeMove();
+            }
+            if (best < 0 || (maxOrMin == MinimaxState.MAX ? value > bestValue : value < bestValue)) {
+                best = move;
+                bestValue = value;
+            }
+            if (maxOrMin == MinimaxState.MAX) {
+                alpha = Math.max(alpha, bestValue);
+            } else {
+                beta = Math.min(beta, bestValue);
+            }
+            if (beta <= alpha) {
+                ordering.cutoff(state.myTurn, picker.move(), ply, depth);
+                if (stats != null) {
+                    stats.cutoff(searched - 1);
                 }
+                break;
             }
-            return realV;
         }
+        if (best < 0) {
+            return state.getUtility();
+        }
+
+        store(state, depth, bestValue, alphaOrig, betaOrig, best);
+        return bestValue;
+    }
+
+    /**
+     * The exact value of a state the endgame tablebase says the footmen win: ENDGAME_WIN less the
+     * plys it takes, so quicker wins score higher.
+     *
+     * States the archers win with perfect play are searched as usual. Scoring them as lost makes
+     * every move look the same and the footman just runs, when ArcherAgent is nowhere near perfect
+     * and the utility beats it from most of them.
+     *
+     * @return The value, or NaN if there is no tablebase or it has no footman win for the state
+     */
+    double probeEndgame(GameState state) {
+        if (tablebase == null) {
+            return Double.NaN;
+        }
+        //The win itself has to beat every position the tablebase says is won, or the footman never takes it
+        if (state.getOutcome() > 0) {
+            return ENDGAME_WIN;
+        }
+        int plys = state.probeEndgame(tablebase);
+        //plys is from the side to move's point of view
+        if (plys == EndgameTablebase.UNKNOWN || (plys > 0) != state.myTurn) {
+            return Double.NaN;
+        }
+        tablebaseHits.increment();
+        return ENDGAME_WIN - Math.abs(plys);
+    }
+
+    //Abandons the running iteration once the turn's time budget is spent, or the background search once the turn starts
+    void checkDeadline() {
+        if (stopPonder || (timed && System.nanoTime() - deadline > 0)) {
+            throw SearchTimeoutException.INSTANCE;
+        }
+    }
+
+    //Saves a search result, recording whether the value is exact or only a bound of the window it was searched with
+    void store(GameState state, int depth, double value, double alpha, double beta, int bestMove) {
+        byte bound = TranspositionTable.EXACT;
+        if (value <= alpha) {
+            bound = TranspositionTable.UPPER;
+        } else if (value >= beta) {
+            bound = TranspositionTable.LOWER;
+        }
+        long key = state.getZobristKey();
+        if (state.isKeyMirrored()) {
+            //the move indexes this state's children, which are in another order than the mirror image's
+            bestMove = TranspositionTable.NO_MOVE;
+        }
+        table.store(key, depth, value, bound, bestMove);
+        if (persistent != null && depth >= PERSIST_DEPTH) {
+            persistent.store(key, depth, value, bound, bestMove);
+        }
+    }
+
+    /**
+     * Looks a state up in the transposition table, then in the persistent one unless the first
+     * already had it at the right depth. An earlier run's deeper result is in the persistent table
+     * under the same key as this turn's shallower iterations.
+     *
+     * @param depth The depth the state is being searched to, -1 if any will do
+     */
+    boolean probe(GameState state, int depth, TranspositionTable.Entry entry) {
+        long key = state.getZobristKey();
+        boolean found = table.probe(key, entry);
+        if (persistent != null && (!found || (depth >= 0 && entry.depth != depth))) {
+            found = persistent.probe(key, found ? depth : -1, entry) || found;
+        }
+        if (found && state.isKeyMirrored()) {
+            //a move stored under the key is the mirror image's, see store
+            entry.move = TranspositionTable.NO_MOVE;
+        }
+        return found;
+    }
+
+    //Best move from an earlier search of the state, if any
+    int hashMove(GameState state, TranspositionTable.Entry entry) {
+        return probe(state, -1, entry) ? entry.move : TranspositionTable.NO_MOVE;
+    }
 
-        return node;
+    //Heuristic order with the hash move, an index into the generated list, pulled to the front
+    List<GameStateChild> orderChildren(List<GameStateChild> generated, int hashMove) {
+        GameStateChild hashChild = hashMove >= 0 && hashMove < generated.size() ? generated.get(hashMove) : null;
+        List<GameStateChild> children = orderChildrenWithHeuristics(new ArrayList<>(generated));
+        if (hashChild != null) {
+            children.remove(hashChild);
+            children.add(0, hashChild);
+        }
+        return children;
+    }
+
+    static boolean isBetter(GameStateChild a, GameStateChild b, MinimaxState maxOrMin) {
+        double difference = a.state.getUtility() - b.state.getUtility();
+        return maxOrMin == MinimaxState.MAX ? difference > 0 : difference < 0;
+    }
+
+    static MinimaxState opposite(MinimaxState maxOrMin) {
+        return maxOrMin == MinimaxState.MAX ? MinimaxState.MIN : MinimaxState.MAX;
     }
 
     /**
@@ -154,23 +761,23 @@ public class MinimaxAlphaBeta extends Agent {
      *
      * Use this function inside of your alphaBetaSearch method.
      *
-     * Include a good comment about what your heuristics are and why you chose them.
+     * Only the root is ordered this way now, once per turn, so it can afford to evaluate every
+     * child: the best utility for whoever made the move comes first. Everything below the root is
+     * ordered by MovePicker without evaluating anything.
      *
      * @param children
      * @return The list of children sorted by your heuristic.
      */
     public List<GameStateChild> orderChildrenWithHeuristics(List<GameStateChild> children)
     {
-        Collections.sort(children, new StateComparator());
+        Collections.sort(children, new Comparator<GameStateChild>() {
+            @Override
+            public int compare(GameStateChild o1, GameStateChild o2) {
+                //The child's turn is the other side's, footmen want high utility and archers low
+                int ascending = Double.compare(o1.state.getUtility(), o2.state.getUtility());
+                return o1.state.myTurn ? ascending : -ascending;
+            }
+        });
         return children;
     }
 }
-
-//Comparator for sorting GameStateChild
-class StateComparator implements Comparator<GameStateChild> {
-
-    @Override
-    public int compare(GameStateChild o1, GameStateChild o2) {
-        return (int)( o1.state.getUtility() - o2.state.getUtility());
-    }
-}
@@ -0,0 +1,279 @@
+package edu.cwru.sepia.agent.minimax;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Monte Carlo tree search (UCT), the alternative to alpha beta for when there are too many joint
+ * moves to search every one of them a few plys deep.
+ *
+ * Each playout walks down the tree picking the child with the best upper confidence bound for
+ * whoever's turn it is, expands the node it ends on with GameState.getMoves, plays on from
+ * there with a cheap policy and backs the result up the path. The move played is the root child
+ * that was visited the most.
+ *
+ * Playout policy: an attack whenever the side to move has one, otherwise usually the walk that
+ * gains the most ground by GameState.getProgress, sometimes a random one. Playouts are kept short
+ * since the archers kite and a long one mostly measures how the two greedy policies chase each
+ * other. A playout is scored 1 if the footmen won, 0 if they lost, and otherwise by how much
+ * GameState.getPlayoutScore went up from the root, squashed into 0..1. The utility itself isn't
+ * used for this, its bonus for attacking is the same whether an archer has been hit once or four
+ * times.
+ *
+ * With several threads they all work on the same tree. A thread going down through a node adds a
+ * virtual loss to it until its playout is backed up, so the others spread out over different
+ * branches instead of all piling into the same one.
+ *
+ * Nodes keep their state packed, see PackedState, so a tree of a few hundred thousand nodes
+ * doesn't fill the heap with GameStates. Each thread has a GameState of its own it unpacks a node
+ * into to expand it or play out from it, and packs each child back from with makeMove and
+ * unmakeMove.
+ */
+class MonteCarloSearch {
+
+    private static final double EXPLORATION = Math.sqrt(2); // the usual UCT constant for rewards in 0..1
+    private static final int PLAYOUT_PLYS = 4; // plys played past the tree before a playout is scored, rounded up to end on the footmen's turn
+    private static final double RANDOM_WALK = 0.2; // chance the playout policy walks at random instead of greedily
+    private static final double SCORE_SCALE = 10; // change in GameState.getPlayoutScore that scores a playout at about 0.73
+    private static final long SEED = 6; // each thread seeds its playouts with this plus its number, so a serial search is repeatable
+
+    private final MinimaxAlphaBeta search; // owns the node counter and statistics
+    private final int threads;
+    private final int playouts; // playouts per turn when there is no time budget
+    private final ExecutorService pool; // null when searching on the calling thread only
+    private int deepest; // deepest ply the tree reached last turn
+
+    // one state in the tree, everything but the state itself is guarded by the node's lock
+    private static class Node {
+        final long move; // the move from the parent, 0 for the root
+        final PackedState state;
+        final boolean footmenMoved; // whether the move into this node was the footmen's
+        List<Node> children; // null until expanded
+        int visits; // playouts backed up through this node, not counting virtual losses
+        int virtualLosses; // playouts still running below this node
+        double reward; // sum of the playout rewards for the side that made the move into this node
+
+        Node(long move, PackedState state) {
+            this.move = move;
+            this.state = state;
+            this.footmenMoved = !state.myTurn;
+        }
+    }
+
+    /**
+     * @param playouts The number of playouts per turn when MinimaxAlphaBeta has no time budget
+     */
+    MonteCarloSearch(MinimaxAlphaBeta search, int threads, int playouts) {
+        this.search = search;
+        this.threads = threads;
+        this.playouts = playouts;
+        if (threads > 1) {
+            pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "minimax-mcts-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        } else {
+            pool = null;
+        }
+    }
+
+    /**
+     * Searches until the time budget runs out, or for the set number of playouts without one.
+     *
+     * @param root The current state of the game
+     * @param timeBudget Nanoseconds to search for, 0 to count playouts instead
+     * @return The root child visited most, or the root itself if there are no moves
+     */
+    GameStateChild search(GameStateChild root, final long timeBudget) {
+        final long deadline = System.nanoTime() + timeBudget;
+        final Node tree = new Node(0, root.state.pack());
+        final double rootScore = root.state.getPlayoutScore();
+        final AtomicInteger started = new AtomicInteger();
+        final int limit = timeBudget > 0 ? Integer.MAX_VALUE : playouts;
+        final int[] depths = new int[threads];
+
+        List<Callable<Void>> workers = new ArrayList<>(threads);
+        for (int i = 0; i < threads; i++) {
+            final int worker = i;
+            workers.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    Random random = new Random(SEED + worker);
+                    GameState scratch = root.state.copy();
+                    //Always at least one playout so the root gets expanded
+                    while (started.getAndIncrement() < limit) {
+                        depths[worker] = Math.max(depths[worker], playout(tree, rootScore, random, scratch));
+                        if (timeBudget > 0 && System.nanoTime() - deadline > 0) {
+                            break;
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
+        try {
+            if (pool == null) {
+                workers.get(0).call();
+            } else {
+                for (Future<Void> result : pool.invokeAll(workers)) {
+                    result.get();
+                }
+            }
+        } catch (Exception e) {
+            throw new RuntimeException("Monte Carlo search failed", e);
+        }
+
+        deepest = 0;
+        for (int depth : depths) {
+            deepest = Math.max(deepest, depth);
+        }
+        Node best = null;
+        for (Node child : tree.children) {
+            if (best == null || child.visits > best.visits
+                    || (child.visits == best.visits && child.reward > best.reward)) {
+                best = child;
+            }
+        }
+        if (best == null) {
+            return root;
+        }
+        GameState state = root.state.copy();
+        state.unpack(best.state);
+        return new GameStateChild(root.state.getActions(best.move), state);
+    }
+
+    /**
+     * @return The deepest ply of the tree last turn's search reached
+     */
+    int getDeepest() {
+        return deepest;
+    }
+
+    void shutdown() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    //Selects down to a leaf, expands it, plays it out on scratch and backs the result up. Returns the leaf's ply
+    private int playout(Node root, double rootScore, Random random, GameState scratch) {
+        List<Node> path = new ArrayList<>();
+        Node node = root;
+        path.add(node);
+        while (true) {
+            Node next;
+            synchronized (node) {
+                node.virtualLosses++;
+                if (node.children == null) {
+                    scratch.unpack(node.state);
+                    long[] moves = scratch.getMoves();
+                    node.children = new ArrayList<>(moves.length);
+                    for (long move : moves) {
+                        scratch.makeMove(move);
+                        node.children.add(new Node(move, scratch.pack()));
+                        scratch.unmakeMove();
+                    }
+                    break;
+                }
+                next = select(node);
+            }
+            if (next == null) {
+                break;
+            }
+            node = next;
+            path.add(node);
+        }
+
+        search.nodes.increment();
+        SearchStats stats = search.stats;
+        if (stats != null) {
+            stats.node(path.size() - 1);
+        }
+        double reward = rollout(node.state, rootScore, random, scratch);
+        for (Node visited : path) {
+            synchronized (visited) {
+                visited.virtualLosses--;
+                visited.visits++;
+                visited.reward += visited.footmenMoved ? reward : 1 - reward;
+            }
+        }
+        return path.size() - 1;
+    }
+
+    //The child with the best upper confidence bound for the side to move, unvisited children first in getMoves order
+    private static Node select(Node node) {
+        Node best = null;
+        double bestBound = Double.NEGATIVE_INFINITY;
+        double logVisits = Math.log(Math.max(node.visits + node.virtualLosses, 1));
+        for (Node child : node.children) {
+            double bound;
+            synchronized (child) {
+                int visits = child.visits + child.virtualLosses;
+                if (visits == 0) {
+                    return child;
+                }
+                //a virtual loss counts as a visit that scored nothing
+                bound = child.reward / visits + EXPLORATION * Math.sqrt(logVisits / visits);
+            }
+            if (bound > bestBound) {
+                best = child;
+                bestBound = bound;
+            }
+        }
+        return best;
+    }
+
+    //Plays on from the state on scratch with the playout policy and scores the result for the footmen
+    private double rollout(PackedState state, double rootScore, Random random, GameState playout) {
+        playout.unpack(state);
+        for (int ply = 0; (ply < PLAYOUT_PLYS || !playout.myTurn) && playout.getOutcome() == 0; ply++) {
+            long[] moves = playout.getAttackMoves();
+            if (moves.length == 0) {
+                moves = playout.getQuietMoves();
+                if (moves.length == 0) {
+                    break;
+                }
+                playout.makeMove(random.nextDouble() < RANDOM_WALK ? moves[random.nextInt(moves.length)]
+                        : greedyWalk(playout, moves, random));
+            } else {
+                playout.makeMove(moves[random.nextInt(moves.length)]);
+            }
+        }
+        int outcome = playout.getOutcome();
+        if (outcome != 0) {
+            return outcome > 0 ? 1 : 0;
+        }
+        return 1 / (1 + Math.exp(-(playout.getPlayoutScore() - rootScore) / SCORE_SCALE));
+    }
+
+    //The walk gaining the most ground, ties broken at random
+    private static long greedyWalk(GameState state, long[] moves, Random random) {
+        long best = 0;
+        int bestProgress = Integer.MIN_VALUE;
+        int ties = 0;
+        for (long move : moves) {
+            int progress = state.getProgress(move);
+            if (progress > bestProgress) {
+                best = move;
+                bestProgress = progress;
+                ties = 1;
+            } else if (progress == bestProgress && random.nextInt(++ties) == 0) {
+                best = move;
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,112 @@
+package edu.cwru.sepia.agent.minimax;
+
+import java.util.Arrays;
+
+/**
+ * What the search has learned about good moves, used by MovePicker to order moves without
+ * evaluating the states they lead to.
+ *
+ * Killer moves: the last two walking moves that caused a cutoff at each ply. Sibling positions
+ * usually have the same refutation, so they are tried before the other walks.
+ *
+ * History: a score for every single unit action (side, unit, direction or target) that
+ * grows by depth^2 each time a move containing it causes a cutoff anywhere in the tree. Deep
+ * cutoffs count for more since they saved more work.
+ *
+ * The parallel search shares one instance between its threads. Updates can race, which only
+ * makes the ordering a little worse, never the values.
+ */
+class MoveOrdering {
+
+    static final int MAX_PLY = 64;
+
+    private static final int ACTION_CODES = 16; // per unit, GameState.ATTACK_CODE + GameState.MAX_UNITS of them fit
+    private static final int HISTORY_LIMIT = 1 << 20; // all scores are halved once one reaches this
+
+    private final long[][] killers = new long[MAX_PLY][2];
+    private final int[] history = new int[2 * GameState.MAX_UNITS * ACTION_CODES];
+
+    MoveOrdering() {
+        clearKillers();
+    }
+
+    /**
+     * Forgets the killers and fades the history between turns, the old position's refutations
+     * are less and less likely to apply as the units move.
+     */
+    void newTurn() {
+        clearKillers();
+        for (int i = 0; i < history.length; i++) {
+            history[i] >>= 2;
+        }
+    }
+
+    private void clearKillers() {
+        for (long[] ply : killers) {
+            Arrays.fill(ply, 0);
+        }
+    }
+
+    /**
+     * Records that a move caused a beta cutoff.
+     *
+     * @param footmen Whether the move is the footmen's
+     * @param ply The distance of the node from the root
+     * @param depth The remaining plys the node was searched to
+     */
+    void cutoff(boolean footmen, long move, int ply, int depth) {
+        for (int unit = 0; unit < GameState.MAX_UNITS; unit++) {
+            int action = GameState.actionCode(move, unit);
+            if (action == 0) {
+                continue;
+            }
+            int index = historyIndex(footmen, unit, action);
+            history[index] += depth * depth;
+            if (history[index] > HISTORY_LIMIT) {
+                for (int i = 0; i < history.length; i++) {
+                    history[i] >>= 1;
+                }
+            }
+        }
+        //Attacks are tried early anyway, killers are for the walks that refute a position
+        if (GameState.attackCount(move) == 0 && ply < MAX_PLY) {
+            if (killers[ply][0] != move) {
+                killers[ply][1] = killers[ply][0];
+                killers[ply][0] = move;
+            }
+        }
+    }
+
+    /**
+     * @return 2 for the ply's first killer, 1 for the second, 0 otherwise
+     */
+    int killerRank(long move, int ply) {
+        if (ply >= MAX_PLY) {
+            return 0;
+        }
+        //a move always has a unit acting, so it's never 0 like an empty slot
+        if (move == killers[ply][0]) {
+            return 2;
+        }
+        return move == killers[ply][1] ? 1 : 0;
+    }
+
+    /**
+     * @param footmen Whether the move is the footmen's
+     * @return The combined history score of the move's unit actions
+     */
+    int history(boolean footmen, long move) {
+        int score = 0;
+        for (int unit = 0; unit < GameState.MAX_UNITS; unit++) {
+            int action = GameState.actionCode(move, unit);
+            if (action != 0) {
+                score += history[historyIndex(footmen, unit, action)];
+            }
+        }
+        return score;
+    }
+
+    private static int historyIndex(boolean footmen, int unit, int action) {
+        return ((footmen ? 0 : GameState.MAX_UNITS) + unit) * ACTION_CODES + action;
+    }
+}
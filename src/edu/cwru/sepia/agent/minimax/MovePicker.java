@@ -0,0 +1,164 @@
+package edu.cwru.sepia.agent.minimax;
+
+/**
+ * Hands out the moves of a state one at a time, generating them in stages so that a cutoff early
+ * on skips the work for everything after it:
+ *
+ * 1. the hash move from the transposition table
+ * 2. the attacks, the ones with more units attacking first
+ * 3. the moves where every unit walks, only generated once the attacks are used up. The ply's
+ *    killer moves go first, then the rest by how much ground they gain, then by history.
+ *
+ * No move is played to order it, every score is a few table lookups. Within a stage the best
+ * remaining move is picked on each call, so moves after a cutoff are never sorted.
+ *
+ * Moves are identified by their index in GameState.getMoves order (attacks, then walks), which is
+ * what the transposition table remembers.
+ */
+class MovePicker {
+
+    private static final int HASH = 0;
+    private static final int ATTACKS = 1;
+    private static final int QUIETS = 2;
+    private static final int DONE = 3;
+
+    private final GameState state;
+    private final int hashMove;
+    private final MoveOrdering ordering;
+    private final int ply;
+    private int stage = HASH;
+
+    private long[] attacks;
+    private long[] quiets; // null until the hash move or the last stage needs them
+    private int[] order; // the current stage's moves, the ones before next already handed out
+    private long[] scores; // the score of each move in order
+    private int next;
+    private long move; // the move last returned by next
+
+    /**
+     * @param hashMove The remembered best move, or TranspositionTable.NO_MOVE
+     * @param ply The distance of the state from the root, for the killer moves
+     */
+    MovePicker(GameState state, int hashMove, MoveOrdering ordering, int ply) {
+        this.state = state;
+        this.hashMove = hashMove;
+        this.ordering = ordering;
+        this.ply = ply;
+    }
+
+    /**
+     * @return The index of the next move to search in getMoves order, or -1 when there are none left
+     */
+    int next() {
+        if (stage == HASH) {
+            stage = ATTACKS;
+            attacks = generate(true);
+            if (hashMove >= 0) {
+                if (hashMove < attacks.length) {
+                    move = attacks[hashMove];
+                    return hashMove;
+                }
+                quiets = generate(false);
+                if (hashMove < attacks.length + quiets.length) {
+                    move = quiets[hashMove - attacks.length];
+                    return hashMove;
+                }
+            }
+        }
+        if (stage == ATTACKS) {
+            if (order == null) {
+                score(attacks, 0);
+            }
+            int index = timedPick();
+            if (index >= 0) {
+                move = attacks[index];
+                return index;
+            }
+            stage = QUIETS;
+            if (quiets == null) {
+                quiets = generate(false);
+            }
+            score(quiets, attacks.length);
+        }
+        if (stage == QUIETS) {
+            int index = timedPick();
+            if (index >= 0) {
+                move = quiets[index - attacks.length];
+                return index;
+            }
+            stage = DONE;
+        }
+        return -1;
+    }
+
+    /**
+     * @return The move last returned by next, see GameState.MAX_UNITS
+     */
+    long move() {
+        return move;
+    }
+
+    //Generates the attacks or the walks, timed when the search is instrumented
+    private long[] generate(boolean attacking) {
+        if (state.stats == null) {
+            return attacking ? state.getAttackMoves() : state.getQuietMoves();
+        }
+        long start = System.nanoTime();
+        long[] moves = attacking ? state.getAttackMoves() : state.getQuietMoves();
+        state.stats.generateTime.add(System.nanoTime() - start);
+        return moves;
+    }
+
+    //pick, timed when the search is instrumented
+    private int timedPick() {
+        if (state.stats == null) {
+            return pick();
+        }
+        long start = System.nanoTime();
+        int index = pick();
+        state.stats.orderTime.add(System.nanoTime() - start);
+        return index;
+    }
+
+    //Scores a stage's moves: attacking units, then killer rank, then ground gained, then history
+    private void score(long[] moves, int offset) {
+        long start = state.stats != null ? System.nanoTime() : 0;
+        order = new int[moves.length];
+        scores = new long[moves.length];
+        next = 0;
+        for (int i = 0; i < moves.length; i++) {
+            long candidate = moves[i];
+            int attackers = GameState.attackCount(candidate);
+            long primary = attackers > 0 ? attackers : ordering.killerRank(candidate, ply);
+            order[i] = offset + i;
+            scores[i] = (primary << 48) + ((long) (state.getProgress(candidate) + 64) << 32)
+                    + ordering.history(state.myTurn, candidate);
+        }
+        if (state.stats != null) {
+            state.stats.orderTime.add(System.nanoTime() - start);
+        }
+    }
+
+    //Selection sort one step at a time: swaps the best remaining move forward and returns it
+    private int pick() {
+        while (next < order.length) {
+            int best = next;
+            for (int i = next + 1; i < order.length; i++) {
+                if (scores[i] > scores[best]) {
+                    best = i;
+                }
+            }
+            int index = order[best];
+            long score = scores[best];
+            order[best] = order[next];
+            scores[best] = scores[next];
+            order[next] = index;
+            scores[next] = score;
+            next++;
+            if (index != hashMove) {
+                return index;
+            }
+        }
+        return -1;
+    }
+}
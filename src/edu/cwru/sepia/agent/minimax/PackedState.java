@@ -0,0 +1,72 @@
+package edu.cwru.sepia.agent.minimax;
+
+import java.util.Arrays;
+
+/**
+ * The part of a GameState that changes from move to move, a long per unit and the turn. Each
+ * long is the unit's cell (y * xExtent + x) in the upper half, then its health and whether it
+ * attacked last. Everything else about a state is the same for every state of a turn, so any
+ * GameState of the turn can be turned into a packed one with GameState.unpack.
+ *
+ * It never changes once made, so copying one is sharing it. The hash is worked out when it's
+ * made, and equals compares the one array. At 16 bytes a unit plus about 50 it is small enough to
+ * keep by the million, where a GameState with its unit array, distance arrays and bitsets takes
+ * several hundred.
+ */
+final class PackedState {
+
+    final boolean myTurn;
+    private final long[] units; // footmen then allArchers, in GameState order
+    private final int hash;
+
+    PackedState(boolean myTurn, long[] units) {
+        this.myTurn = myTurn;
+        this.units = units;
+        this.hash = 31 * Arrays.hashCode(units) + (myTurn ? 1 : 0);
+    }
+
+    static long packUnit(int cell, int health, boolean attacking) {
+        return ((long) cell << 32) | ((health & 0xFFFF) << 1) | (attacking ? 1 : 0);
+    }
+
+    static int cell(long unit) {
+        return (int) (unit >>> 32);
+    }
+
+    // health can be below 0 once a unit is dead
+    static int health(long unit) {
+        return (short) (unit >>> 1);
+    }
+
+    static boolean attacking(long unit) {
+        return (unit & 1) != 0;
+    }
+
+    /**
+     * @param index The unit's position in footmen, or footmen.size() plus its position in allArchers
+     */
+    long unit(int index) {
+        return units[index];
+    }
+
+    int unitCount() {
+        return units.length;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof PackedState)) {
+            return false;
+        }
+        PackedState packed = (PackedState) other;
+        return hash == packed.hash && myTurn == packed.myTurn && Arrays.equals(units, packed.units);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+}
@@ -0,0 +1,396 @@
+package edu.cwru.sepia.agent.minimax;
+
+import edu.cwru.sepia.environment.model.state.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Parallel version of MinimaxAlphaBeta's search using Young Brothers Wait.
+ *
+ * At every node the first (eldest) child is searched on the current thread to get a bound. The
+ * younger brothers are then forked onto a ForkJoinPool together. They share the node's alpha and
+ * beta through a SplitPoint, pick up whatever bound the others have found when they start, and stop
+ * as soon as one of them causes a cutoff. Nodes too close to the leaves to be worth a task are
+ * searched serially.
+ *
+ * With PVS every younger brother gets a null window first and is only searched again with the
+ * whole window when it beats the best value so far, the same as in the serial search.
+ *
+ * Values are the same as the serial search at the same depth, so it picks the same move.
+ *
+ * Each call of searchRoot has a stop flag of its own that every task checks. When the iteration
+ * ends, finished or out of time, the flag is set and stays set, and searchRoot waits for the pool
+ * to run out of work before returning. invokeAll only cancels the brothers that haven't started,
+ * so without that the running ones would carry on into the next iteration or turn.
+ */
+class ParallelAlphaBeta {
+
+    private static final int MIN_SPLIT_DEPTH = 2; // remaining plys below which brothers are searched serially
+
+    private final MinimaxAlphaBeta search; // owns the transposition table, ordering and deadline
+    private final ForkJoinPool pool;
+
+    ParallelAlphaBeta(MinimaxAlphaBeta search, int threads) {
+        this.search = search;
+        this.pool = new ForkJoinPool(threads);
+    }
+
+    int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    /**
+     * Same contract as MinimaxAlphaBeta.searchRoot. The eldest root child is searched first, then
+     * the rest in parallel, each with the window widened by a step so ties come back exact. No task
+     * is still running once it returns or throws.
+     */
+    GameStateChild searchRoot(final GameState state, final List<GameStateChild> generated, final List<GameStateChild> children,
+                              final int depth, final double alpha, final double beta,
+                              final MinimaxAlphaBeta.MinimaxState maxOrMin, final double[] scores) {
+        if (search.stats != null) {
+            search.stats.node(0);
+        }
+        final double[] values = new double[children.size()];
+        final int[] searched = new int[1];
+        final AtomicBoolean stopped = new AtomicBoolean(false);
+        //The children's own states are handed on, e.g. to pondering, so the tasks search copies
+        final List<GameState> states = rootStates(children);
+        try {
+            pool.invoke(new RecursiveAction() {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected void compute() {
+                    TranspositionTable.Entry entry = new TranspositionTable.Entry();
+                    MinimaxAlphaBeta.MinimaxState childTurn = MinimaxAlphaBeta.opposite(maxOrMin);
+                    values[0] = value(states.get(0), depth - 1, Math.nextDown(alpha), Math.nextUp(beta), childTurn,
+                            null, entry, stopped);
+
+                    SplitPoint split = new SplitPoint(null, maxOrMin, alpha, beta);
+                    split.report(0, values[0]);
+                    if (!split.cutoff) {
+                        invokeAll(brothers(split, states, 1, depth - 1, values, true, stopped));
+                    }
+                    searched[0] = split.cutoff ? split.cutoffIndex + 1 : children.size();
+                }
+            });
+        } finally {
+            //A timeout only cancels the tasks that hadn't started, call off the rest and wait for them
+            stopped.set(true);
+            pool.awaitQuiescence(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+
+        if (searched[0] < children.size() && search.stats != null) {
+            search.stats.cutoff(searched[0] - 1);
+        }
+        int best = MinimaxAlphaBeta.pickBest(children, values, searched[0], maxOrMin);
+        MinimaxAlphaBeta.fillScores(values, searched[0], maxOrMin, scores);
+        search.store(state, depth, values[best], alpha, beta, generated.indexOf(children.get(best)));
+        return children.get(best);
+    }
+
+    //A copy of each root child's state for the tasks to make and unmake moves on
+    private static List<GameState> rootStates(List<GameStateChild> children) {
+        List<GameState> states = new ArrayList<>(children.size());
+        for (GameStateChild child : children) {
+            states.add(child.state.copy());
+        }
+        return states;
+    }
+
+    /**
+     * The recursive search, the parallel counterpart of MinimaxAlphaBeta.alphaBetaValue.
+     *
+     * @param split The nearest ancestor whose children are being searched in parallel, or null
+     * @param entry Probe results for the thread running this call
+     * @param stopped Set once the iteration is over, so the tasks still running give up
+     */
+    private double value(GameState state, int depth, double alpha, double beta, MinimaxAlphaBeta.MinimaxState maxOrMin,
+                         SplitPoint split, TranspositionTable.Entry entry, AtomicBoolean stopped) {
+        search.checkDeadline();
+        if (stopped.get()) {
+            throw SearchTimeoutException.INSTANCE;
+        }
+        search.nodes.increment();
+        SearchStats stats = search.stats;
+        if (stats != null) {
+            stats.node(search.rootDepth - depth);
+        }
+        if (split != null && split.isCancelled()) {
+            throw SearchCancelledException.INSTANCE;
+        }
+        double endgame = search.probeEndgame(state);
+        if (!Double.isNaN(endgame)) {
+            return endgame;
+        }
+        if (depth == 0) {
+            return state.getUtility();
+        }
+
+        int hashMove = TranspositionTable.NO_MOVE;
+        if (search.probe(state, depth, entry)) {
+            hashMove = entry.move;
+            if (entry.depth == depth) {
+                if (entry.bound == TranspositionTable.EXACT) {
+                    return entry.value;
+                } else if (entry.bound == TranspositionTable.LOWER) {
+                    alpha = Math.max(alpha, entry.value);
+                } else {
+                    beta = Math.min(beta, entry.value);
+                }
+                if (beta <= alpha) {
+                    return entry.value;
+                }
+            }
+        }
+
+        MovePicker picker = new MovePicker(state, hashMove, search.ordering, search.rootDepth - depth);
+        int eldestMove = picker.next();
+        if (eldestMove < 0) {
+            return state.getUtility();
+        }
+        MinimaxAlphaBeta.MinimaxState childTurn = MinimaxAlphaBeta.opposite(maxOrMin);
+
+        //Eldest brother first, on this thread and in place
+        double eldest;
+        state.makeMove(picker.move());
+        try {
+            eldest = value(state, depth - 1, alpha, beta, childTurn, split, entry, stopped);
+        } finally {
+            state.unmakeMove();
+        }
+        SplitPoint node = new SplitPoint(split, maxOrMin, alpha, beta);
+        node.report(0, eldest);
+
+        //Move index and move of each child in search order, SplitPoint only knows the search order
+        List<Integer> searched = new ArrayList<>();
+        List<Long> searchedMoves = new ArrayList<>();
+        searched.add(eldestMove);
+        searchedMoves.add(picker.move());
+        if (!node.cutoff) {
+            if (depth - 1 < MIN_SPLIT_DEPTH) {
+                while (!node.cutoff) {
+                    int move = picker.next();
+                    if (move < 0) {
+                        break;
+                    }
+                    double value;
+                    state.makeMove(picker.move());
+                    try {
+                        value = brotherValue(state, depth - 1, node.alpha, node.beta, maxOrMin, split, entry, stopped);
+                    } finally {
+                        state.unmakeMove();
+                    }
+                    searched.add(move);
+                    searchedMoves.add(picker.move());
+                    node.report(searched.size() - 1, value);
+                }
+            } else {
+                //Each brother gets its own copy of the state to make and unmake moves on
+                List<GameState> states = new ArrayList<>();
+                states.add(null);
+                for (int move = picker.next(); move >= 0; move = picker.next()) {
+                    GameState brother = state.copy();
+                    brother.makeMove(picker.move());
+                    states.add(brother);
+                    searched.add(move);
+                    searchedMoves.add(picker.move());
+                }
+                if (states.size() > 1) {
+                    ForkJoinTask.invokeAll(brothers(node, states, 1, depth - 1, null, false, stopped));
+                }
+                //A cutoff further up means this node's result is incomplete, don't let it into the table
+                if (split != null && split.isCancelled()) {
+                    throw SearchCancelledException.INSTANCE;
+                }
+            }
+        }
+
+        if (node.cutoff) {
+            search.ordering.cutoff(state.myTurn, searchedMoves.get(node.cutoffIndex), search.rootDepth - depth, depth);
+            if (stats != null) {
+                stats.cutoff(node.cutoffIndex);
+            }
+        }
+        search.store(state, depth, node.bestValue, alpha, beta, searched.get(node.bestIndex));
+        return node.bestValue;
+    }
+
+    /**
+     * The value of a child after the eldest. With PVS it is first searched with a null window
+     * that only tells whether it beats the best so far, and again with the whole window if it does.
+     *
+     * @param maxOrMin Whose turn it is at the parent
+     */
+    private double brotherValue(GameState state, int depth, double alpha, double beta, MinimaxAlphaBeta.MinimaxState maxOrMin,
+                                SplitPoint split, TranspositionTable.Entry entry, AtomicBoolean stopped) {
+        MinimaxAlphaBeta.MinimaxState childTurn = MinimaxAlphaBeta.opposite(maxOrMin);
+        if (!search.pvs) {
+            return value(state, depth, alpha, beta, childTurn, split, entry, stopped);
+        }
+        double value;
+        if (maxOrMin == MinimaxAlphaBeta.MinimaxState.MAX) {
+            value = value(state, depth, alpha, Math.nextUp(alpha), childTurn, split, entry, stopped);
+        } else {
+            value = value(state, depth, Math.nextDown(beta), beta, childTurn, split, entry, stopped);
+        }
+        if (value > alpha && value < beta) {
+            value = value(state, depth, alpha, beta, childTurn, split, entry, stopped);
+        }
+        return value;
+    }
+
+    //One task per younger brother, each searching with the split point's current window
+    private List<RecursiveAction> brothers(final SplitPoint node, final List<GameState> states, int from, final int depth,
+                                           final double[] values, final boolean widen, final AtomicBoolean stopped) {
+        final MinimaxAlphaBeta.MinimaxState childTurn = MinimaxAlphaBeta.opposite(node.maxOrMin);
+        List<RecursiveAction> tasks = new ArrayList<>(states.size() - from);
+        for (int i = from; i < states.size(); i++) {
+            final int index = i;
+            tasks.add(new RecursiveAction() {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected void compute() {
+                    if (node.isCancelled()) {
+                        return;
+                    }
+                    double alpha = node.alpha;
+                    double beta = node.beta;
+                    if (widen) {
+                        alpha = Math.nextDown(alpha);
+                        beta = Math.nextUp(beta);
+                    }
+                    try {
+                        //the root's children are searched with the whole window, like the serial search does
+                        TranspositionTable.Entry entry = new TranspositionTable.Entry();
+                        double value = widen ? value(states.get(index), depth, alpha, beta, childTurn, node, entry, stopped)
+                                : brotherValue(states.get(index), depth, alpha, beta, node.maxOrMin, node, entry, stopped);
+                        if (values != null) {
+                            values[index] = value;
+                        }
+                        node.report(index, value);
+                    } catch (SearchCancelledException e) {
+                        //a brother or an ancestor's brother already refuted this node
+                    }
+                }
+            });
+        }
+        return tasks;
+    }
+
+    /**
+     * A node whose children are being searched in parallel. Holds the window and best value the
+     * children share, and whether a cutoff has made the rest of them pointless.
+     */
+    private static class SplitPoint {
+        final SplitPoint parent;
+        final MinimaxAlphaBeta.MinimaxState maxOrMin;
+        volatile double alpha;
+        volatile double beta;
+        volatile boolean cutoff = false;
+        int cutoffIndex = -1;
+        int bestIndex = -1;
+        double bestValue;
+
+        SplitPoint(SplitPoint parent, MinimaxAlphaBeta.MinimaxState maxOrMin, double alpha, double beta) {
+            this.parent = parent;
+            this.maxOrMin = maxOrMin;
+            this.alpha = alpha;
+            this.beta = beta;
+        }
+
+        //Backs up a child's value, ties go to the child searched first like in the serial search
+        synchronized void report(int index, double value) {
+            boolean better = bestIndex < 0
+                    || (maxOrMin == MinimaxAlphaBeta.MinimaxState.MAX ? value > bestValue : value < bestValue)
+                    || (value == bestValue && index < bestIndex);
+            if (better) {
+                bestIndex = index;
+                bestValue = value;
+            }
+            if (maxOrMin == MinimaxAlphaBeta.MinimaxState.MAX) {
+                alpha = Math.max(alpha, value);
+            } else {
+                beta = Math.min(beta, value);
+            }
+            if (beta <= alpha && !cutoff) {
+                cutoff = true;
+                cutoffIndex = index;
+            }
+        }
+
+        boolean isCancelled() {
+            for (SplitPoint point = this; point != null; point = point.parent) {
+                if (point.cutoff) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Times fixed-depth searches of a map's opening position with 1, 2, 4, ... threads up to the
+     * given count and prints the speedup over the serial search, and whether the move matches.
+     * With lazy it times LazySmpSearch instead, and also prints how often a thread found an entry
+     * another thread stored and how often two threads' writes of an entry were found torn.
+     *
+     * Usage: ParallelAlphaBeta mapFile depth maxThreads [ybw|lazy]
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("Usage: ParallelAlphaBeta <map xml> <depth> <max threads> [ybw|lazy]");
+            System.exit(1);
+        }
+        State.StateView view = MapLoader.load(args[0], 0);
+        int depth = Integer.parseInt(args[1]);
+        int maxThreads = Integer.parseInt(args[2]);
+        String split = args.length > 3 ? args[3] : "ybw";
+
+        long serialTime = 0;
+        GameStateChild serialMove = null;
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            MinimaxAlphaBeta agent = new MinimaxAlphaBeta(0, new String[]{args[1], "threads=" + threads, "parallel=" + split});
+            long start = System.nanoTime();
+            GameStateChild move = agent.alphaBetaSearch(new GameStateChild(view), depth,
+                    Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, MinimaxAlphaBeta.MinimaxState.MAX);
+            long time = System.nanoTime() - start;
+            if (threads == 1) {
+                serialTime = time;
+                serialMove = move;
+            }
+            System.out.printf("%2d threads: %8.1f ms, speedup %.2fx, %d nodes, %s%n", threads, time / 1e6,
+                    (double) serialTime / time, agent.nodes.sum(),
+                    move.action.equals(serialMove.action) ? "same move" : "DIFFERENT move " + move.action);
+            if (split.equals("lazy")) {
+                long hits = agent.table.getHits();
+                System.out.printf("            %d TT hits, %.1f%% from other threads, %d torn reads in %d probes%n",
+                        hits, hits == 0 ? 0.0 : 100.0 * agent.table.getSharedHits() / hits,
+                        agent.table.getTornReads(), hits + agent.table.getMisses());
+            }
+            agent.shutdown();
+        }
+    }
+
+    void shutdown() {
+        pool.shutdown();
+    }
+}
+
+//Thrown through a parallel search branch once a cutoff elsewhere has made it pointless
+class SearchCancelledException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    static final SearchCancelledException INSTANCE = new SearchCancelledException();
+
+    private SearchCancelledException() {
+        super("search branch cancelled", null, false, false);
+    }
+}
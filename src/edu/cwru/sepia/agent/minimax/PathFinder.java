@@ -0,0 +1,214 @@
+package edu.cwru.sepia.agent.minimax;
+
+import java.util.Arrays;
+
+/**
+ * A* on the four cardinal directions that allocates nothing per search, for the path lengths
+ * GameState can't look up in the distance table.
+ *
+ * Cells are indexed y * xExtent + x. The open list is a binary heap of cell indices ordered by
+ * cost + heuristic, and the per cell arrays are stamped with the number of the search that last
+ * wrote them, so a new search only bumps the stamp instead of clearing them.
+ *
+ * It expands cells in exactly the order the PriorityQueue version did, ties included: the heap
+ * sifts the way java.util.PriorityQueue does, a cell is never put on the open list twice and its
+ * cost is fixed when it is, and the goal only counts once something else is still open after it
+ * was expanded. So it returns the same lengths, including the rare longer than shortest one.
+ *
+ * An instance is only used by one thread at a time, forMap hands each thread its own.
+ */
+class PathFinder {
+
+    private static final ThreadLocal<PathFinder> perThread = new ThreadLocal<>();
+
+    private final int xExtent;
+    private final int yExtent;
+    private final int[] seen; // [cell] the search that put the cell on the open list, so it is open or closed
+    private final int[] cost; // [cell] steps from the start, valid when seen matches
+    private final int[] estimate; // [cell] cost plus the heuristic, what the heap orders by
+    private final int[] heap; // cells on the open list
+    private int size;
+    private int search = 0; // stamp of the current search
+
+    private PathFinder(int xExtent, int yExtent) {
+        this.xExtent = xExtent;
+        this.yExtent = yExtent;
+        int cells = xExtent * yExtent;
+        seen = new int[cells];
+        cost = new int[cells];
+        estimate = new int[cells];
+        heap = new int[cells];
+    }
+
+    /**
+     * @return The calling thread's path finder for a map of this size
+     */
+    static PathFinder forMap(int xExtent, int yExtent) {
+        PathFinder finder = perThread.get();
+        if (finder == null || finder.xExtent != xExtent || finder.yExtent != yExtent) {
+            finder = new PathFinder(xExtent, yExtent);
+            perThread.set(finder);
+        }
+        return finder;
+    }
+
+    /**
+     * Finds the number of cells between start and end, not counting either. The blocked cells are
+     * given as GameState's bitsets, a bit per cell of the map with a one cell border around it.
+     *
+     * @param walls Cells that are off the map or have a resource on them
+     * @param units Cells with a unit that blocks the path
+     * @return The number of cells in between, or Integer.MAX_VALUE if there is no path
+     */
+    int pathLength(int startX, int startY, int endX, int endY, long[] walls, long[] units) {
+        if (++search == Integer.MAX_VALUE) {
+            // the stamps wrapped around, start them over
+            Arrays.fill(seen, 0);
+            search = 1;
+        }
+        int stride = xExtent + 2;
+        int end = endY * xExtent + endX;
+        size = 0;
+        open(startY * xExtent + startX, 0, endX, endY);
+
+        boolean done = false;
+        while (size > 0) {
+            if (done) {
+                return Math.max(cost[end] - 1, 0);
+            }
+            int current = poll();
+            int x = current % xExtent;
+            int y = current / xExtent;
+            int next = cost[current] + 1;
+            // same neighbour order as before: west, east, north, south
+            if (isFree(x - 1, y, stride, walls, units)) {
+                visit(current - 1, next, endX, endY);
+            }
+            if (isFree(x + 1, y, stride, walls, units)) {
+                visit(current + 1, next, endX, endY);
+            }
+            if (isFree(x, y - 1, stride, walls, units)) {
+                visit(current - xExtent, next, endX, endY);
+            }
+            if (isFree(x, y + 1, stride, walls, units)) {
+                visit(current + xExtent, next, endX, endY);
+            }
+            if (current == end) {
+                done = true;
+            }
+        }
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * Same as pathLength, but always the shortest length. It searches breadth first, so unlike
+     * pathLength the result doesn't depend on the order the neighbours are tried in, and a map
+     * that is the same mirrored gives the same length between the mirrored cells. GameState uses
+     * it on transposable maps, see GameState.getZobristKey.
+     *
+     * @return The number of cells in between, or Integer.MAX_VALUE if there is no path
+     */
+    int shortestPathLength(int startX, int startY, int endX, int endY, long[] walls, long[] units) {
+        if (++search == Integer.MAX_VALUE) {
+            Arrays.fill(seen, 0);
+            search = 1;
+        }
+        int stride = xExtent + 2;
+        int end = endY * xExtent + endX;
+        // heap is a plain queue here, every cell goes on it at most once
+        int head = 0;
+        size = 0;
+        int start = startY * xExtent + startX;
+        seen[start] = search;
+        cost[start] = 0;
+        heap[size++] = start;
+
+        while (head < size) {
+            int current = heap[head++];
+            if (current == end) {
+                return Math.max(cost[end] - 1, 0);
+            }
+            int x = current % xExtent;
+            int y = current / xExtent;
+            int next = cost[current] + 1;
+            if (isFree(x - 1, y, stride, walls, units)) {
+                enqueue(current - 1, next);
+            }
+            if (isFree(x + 1, y, stride, walls, units)) {
+                enqueue(current + 1, next);
+            }
+            if (isFree(x, y - 1, stride, walls, units)) {
+                enqueue(current - xExtent, next);
+            }
+            if (isFree(x, y + 1, stride, walls, units)) {
+                enqueue(current + xExtent, next);
+            }
+        }
+        return Integer.MAX_VALUE;
+    }
+
+    private void enqueue(int cell, int steps) {
+        if (seen[cell] != search) {
+            seen[cell] = search;
+            cost[cell] = steps;
+            heap[size++] = cell;
+        }
+    }
+
+    private static boolean isFree(int x, int y, int stride, long[] walls, long[] units) {
+        int bit = (y + 1) * stride + x + 1;
+        return ((walls[bit >>> 6] | units[bit >>> 6]) & (1L << bit)) == 0;
+    }
+
+    // puts a cell on the open list unless it has been on it already this search
+    private void visit(int cell, int steps, int endX, int endY) {
+        if (seen[cell] != search) {
+            open(cell, steps, endX, endY);
+        }
+    }
+
+    private void open(int cell, int steps, int endX, int endY) {
+        seen[cell] = search;
+        cost[cell] = steps;
+        // chebyshev distance, never more than the real distance moving in four directions
+        estimate[cell] = steps + Math.max(Math.abs(cell % xExtent - endX), Math.abs(cell / xExtent - endY));
+        siftUp(size++, cell);
+    }
+
+    // PriorityQueue.siftUp
+    private void siftUp(int k, int cell) {
+        while (k > 0) {
+            int parent = (k - 1) >>> 1;
+            if (estimate[cell] >= estimate[heap[parent]]) {
+                break;
+            }
+            heap[k] = heap[parent];
+            k = parent;
+        }
+        heap[k] = cell;
+    }
+
+    // PriorityQueue.poll and siftDown
+    private int poll() {
+        int result = heap[0];
+        int last = heap[--size];
+        if (size > 0) {
+            int k = 0;
+            int half = size >>> 1;
+            while (k < half) {
+                int child = 2 * k + 1;
+                int right = child + 1;
+                if (right < size && estimate[heap[child]] > estimate[heap[right]]) {
+                    child = right;
+                }
+                if (estimate[last] <= estimate[heap[child]]) {
+                    break;
+                }
+                heap[k] = heap[child];
+                k = child;
+            }
+            heap[k] = last;
+        }
+        return result;
+    }
+}
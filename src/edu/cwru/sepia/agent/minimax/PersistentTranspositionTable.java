@@ -0,0 +1,221 @@
+package edu.cwru.sepia.agent.minimax;
+
+import edu.cwru.sepia.environment.model.state.State;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A second transposition table kept in a memory mapped file, so search results outlive the agent
+ * and a later episode or run on the same map starts with everything the earlier ones searched.
+ *
+ * The file is mapped rather than read in, so opening it costs the same however big it is and
+ * only the pages the search touches ever get loaded. It is a fixed number of slots with open
+ * addressing: a key goes in the first of PROBE_SLOTS slots from its home slot that is empty or
+ * already holds it, otherwise over the shallowest of them if that is shallower than the new result.
+ * A key's own slot isn't overwritten by a shallower result either, since iterative deepening
+ * searches every state shallower before it gets to the depth an earlier run saved.
+ *
+ * File layout, big endian:
+ *
+ * header: MAGIC, VERSION, xExtent, yExtent (ints), hash of the resource cells, flags, salt (longs), slots (int)
+ * slots: key, value (8 bytes each), depth, bound (a byte each), move (short), check (int)
+ *
+ * check is a hash of the rest of the slot and the file's salt. A slot whose check doesn't match
+ * is empty: never written, written by a process that died halfway through, torn by two threads
+ * writing it at once or left over from before the file was started over. That is also what lets
+ * the search threads share the table without locking. Starting over only takes a new salt.
+ */
+class PersistentTranspositionTable {
+
+    static final int MAGIC = 0x53455454; // "SETT"
+    static final int VERSION = 2; // 2: Zobrist keys stopped depending on unit IDs
+    static final long TABLEBASE = 1; // flag for values that came from the endgame tablebase
+
+    private static final int HEADER_BYTES = 4 * 4 + 3 * 8 + 4;
+    private static final int SLOT_BYTES = 8 + 8 + 1 + 1 + 2 + 4;
+    private static final int PROBE_SLOTS = 4; // slots looked at from a key's home slot
+
+    private final File file;
+    private final MappedByteBuffer slots; // the whole file, header included
+    private final int slotMask;
+    private final long salt;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder stores = new LongAdder();
+
+    private PersistentTranspositionTable(File file, MappedByteBuffer slots, int slotCount, long salt) {
+        this.file = file;
+        this.slots = slots;
+        this.slotMask = slotCount - 1;
+        this.salt = salt;
+    }
+
+    /**
+     * Maps a table file, starting it over if it is new, was made for another map or settings, or
+     * isn't the requested size.
+     *
+     * @param megabytes Size of the file. The table uses the largest power of two number of slots that fits.
+     * @param state The first state of the episode
+     * @param flags What the stored values depend on besides the map, TABLEBASE or 0
+     */
+    static PersistentTranspositionTable open(File file, int megabytes, State.StateView state, long flags)
+            throws IOException {
+        long budget = Math.max(1, megabytes) * 1024L * 1024L;
+        int slotCount = Integer.highestOneBit((int) Math.min(budget / SLOT_BYTES, 1 << 26));
+        long size = HEADER_BYTES + (long) slotCount * SLOT_BYTES;
+        long mapHash = MapData.forMap(state).hash;
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+            boolean fits = channel.size() == size;
+            if (fits) {
+                MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+                fits = header.getInt(0) == MAGIC && header.getInt(4) == VERSION
+                        && header.getInt(8) == state.getXExtent() && header.getInt(12) == state.getYExtent()
+                        && header.getLong(16) == mapHash && header.getLong(24) == flags
+                        && header.getInt(40) == slotCount;
+            }
+            if (!fits) {
+                //Growing the file leaves the new part zeroed without writing it
+                raf.setLength(0);
+                raf.setLength(size);
+            }
+            MappedByteBuffer slots = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            long salt;
+            if (fits) {
+                salt = slots.getLong(32);
+            } else {
+                salt = new Random().nextLong();
+                slots.putInt(0, MAGIC);
+                slots.putInt(4, VERSION);
+                slots.putInt(8, state.getXExtent());
+                slots.putInt(12, state.getYExtent());
+                slots.putLong(16, mapHash);
+                slots.putLong(24, flags);
+                slots.putLong(32, salt);
+                slots.putInt(40, slotCount);
+            }
+            //the mapping stays valid after the channel is closed
+            return new PersistentTranspositionTable(file, slots, slotCount, salt);
+        }
+    }
+
+    /**
+     * Looks up a state.
+     *
+     * @param key The Zobrist hash of the state
+     * @param depth Only find the state if it was searched this deep, -1 for any depth
+     * @param entry Receives the stored depth, value, bound and move when the state is found
+     * @return Whether the state was in the table
+     */
+    boolean probe(long key, int depth, TranspositionTable.Entry entry) {
+        int home = homeSlot(key);
+        for (int i = 0; i < PROBE_SLOTS; i++) {
+            int offset = offset((home + i) & slotMask);
+            //Read everything once, then check it all belongs together
+            long slotKey = slots.getLong(offset);
+            long valueBits = slots.getLong(offset + 8);
+            int meta = slots.getInt(offset + 16);
+            int check = slots.getInt(offset + 20);
+            if (slotKey == key && check == check(slotKey, valueBits, meta)) {
+                if (depth >= 0 && meta >>> 24 != depth) {
+                    break;
+                }
+                entry.value = Double.longBitsToDouble(valueBits);
+                entry.depth = meta >>> 24;
+                entry.bound = (byte) (meta >>> 16);
+                entry.move = (short) meta;
+                hits.increment();
+                return true;
+            }
+        }
+        misses.increment();
+        return false;
+    }
+
+    /**
+     * Records the result of searching a state, see TranspositionTable.store.
+     */
+    void store(long key, int depth, double value, byte bound, int move) {
+        int home = homeSlot(key);
+        int target = -1;
+        int targetDepth = Integer.MAX_VALUE;
+        for (int i = 0; i < PROBE_SLOTS; i++) {
+            int slot = (home + i) & slotMask;
+            int offset = offset(slot);
+            long slotKey = slots.getLong(offset);
+            int meta = slots.getInt(offset + 16);
+            boolean valid = slots.getInt(offset + 20) == check(slotKey, slots.getLong(offset + 8), meta);
+            if (!valid || slotKey == key) {
+                target = slot;
+                targetDepth = valid ? (meta >>> 24) - 1 : -1;
+                break;
+            }
+            if ((meta >>> 24) < targetDepth) {
+                target = slot;
+                targetDepth = meta >>> 24;
+            }
+        }
+        if (targetDepth >= depth) {
+            return;
+        }
+
+        int offset = offset(target);
+        long valueBits = Double.doubleToLongBits(value);
+        int meta = (Math.min(depth, 255) << 24) | ((bound & 0xFF) << 16) | (move & 0xFFFF);
+        slots.putLong(offset, key);
+        slots.putLong(offset + 8, valueBits);
+        slots.putInt(offset + 16, meta);
+        slots.putInt(offset + 20, check(key, valueBits, meta));
+        stores.increment();
+    }
+
+    /**
+     * Writes what has been stored out to the file, so it survives the machine going down and not
+     * just the process.
+     */
+    void flush() {
+        slots.force();
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    void resetCounters() {
+        hits.reset();
+        misses.reset();
+        stores.reset();
+    }
+
+    private int homeSlot(long key) {
+        return (int) ((key ^ (key >>> 32)) & slotMask);
+    }
+
+    private static int offset(int slot) {
+        return HEADER_BYTES + slot * SLOT_BYTES;
+    }
+
+    // a 64 bit mix of the slot down to 32 bits, different for every file
+    private int check(long key, long valueBits, int meta) {
+        long hash = salt ^ key;
+        hash = (hash ^ (hash >>> 33)) * 0xff51afd7ed558ccdL + valueBits;
+        hash = (hash ^ (hash >>> 33)) * 0xc4ceb9fe1a85ec53L + meta;
+        hash ^= hash >>> 33;
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        long hitCount = hits.sum();
+        long probes = hitCount + misses.sum();
+        return String.format("Persistent TT %s: %d hits, %d misses (%.1f%% hit rate), %d stores, %d slots",
+                file, hitCount, misses.sum(), probes == 0 ? 0.0 : 100.0 * hitCount / probes, stores.sum(), slotMask + 1);
+    }
+}
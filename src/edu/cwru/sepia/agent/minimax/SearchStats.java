@@ -0,0 +1,227 @@
+package edu.cwru.sepia.agent.minimax;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and timers for one turn of the search.
+ *
+ * The search only keeps a SearchStats while something is listening: the stats agent argument
+ * asks for a CSV or JSON line per turn, or a JFR recording has the SearchTurn event enabled.
+ * Otherwise every hook is a null check on a field.
+ *
+ * Counters are LongAdders so the parallel search's threads can share them. Times are summed over
+ * every thread, so with several threads they can add up to more than the turn took.
+ */
+class SearchStats {
+
+    static final int MAX_PLY = MoveOrdering.MAX_PLY;
+    static final int CUTOFF_INDICES = 8; // cutoffs by this child index or later share the last counter
+
+    private final long start = System.nanoTime();
+    private final LongAdder[] nodesPerPly = adders(MAX_PLY + 1);
+    private final LongAdder[] cutoffsAt = adders(CUTOFF_INDICES);
+    private final List<Long> iterationNodes = new ArrayList<>(); // total nodes when each iteration finished
+    private final TurnEvent event = new TurnEvent();
+
+    final LongAdder generateTime = new LongAdder(); // generating moves and children
+    final LongAdder orderTime = new LongAdder(); // scoring and sorting moves
+    final LongAdder utilityTime = new LongAdder(); // getUtility, including the distances
+    final LongAdder distanceTime = new LongAdder(); // distance table lookups and A* inside getUtility
+
+    SearchStats() {
+        event.begin();
+    }
+
+    private static LongAdder[] adders(int count) {
+        LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    /**
+     * @return Whether a JFR recording wants SearchTurn events, checked once per turn
+     */
+    static boolean isEventEnabled() {
+        return new TurnEvent().isEnabled();
+    }
+
+    void node(int ply) {
+        nodesPerPly[Math.min(Math.max(ply, 0), MAX_PLY)].increment();
+    }
+
+    /**
+     * @param index The position in search order of the child that caused the cutoff, 0 for the first
+     */
+    void cutoff(int index) {
+        cutoffsAt[Math.min(index, CUTOFF_INDICES - 1)].increment();
+    }
+
+    void iterationDone() {
+        iterationNodes.add(nodes());
+    }
+
+    long nodes() {
+        long nodes = 0;
+        for (LongAdder ply : nodesPerPly) {
+            nodes += ply.sum();
+        }
+        return nodes;
+    }
+
+    long cutoffs() {
+        long cutoffs = 0;
+        for (LongAdder index : cutoffsAt) {
+            cutoffs += index.sum();
+        }
+        return cutoffs;
+    }
+
+    /**
+     * How many times more nodes the last iteration took than the one before, the usual estimate
+     * of the branching factor alpha beta is really seeing.
+     */
+    double branchingFactor() {
+        int count = iterationNodes.size();
+        if (count < 2) {
+            return 0;
+        }
+        long last = iterationNodes.get(count - 1) - iterationNodes.get(count - 2);
+        long previous = count > 2 ? iterationNodes.get(count - 2) - iterationNodes.get(count - 3) : iterationNodes.get(0);
+        return previous == 0 ? 0 : (double) last / previous;
+    }
+
+    private int deepestPly() {
+        int deepest = 0;
+        for (int ply = 0; ply <= MAX_PLY; ply++) {
+            if (nodesPerPly[ply].sum() > 0) {
+                deepest = ply;
+            }
+        }
+        return deepest;
+    }
+
+    private String join(LongAdder[] counters, int count, String separator) {
+        StringBuilder joined = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                joined.append(separator);
+            }
+            joined.append(counters[i].sum());
+        }
+        return joined.toString();
+    }
+
+    static String csvHeader() {
+        return "turn,depth,nodes,nodesPerSecond,cutoffs,cutoffsAtIndex,branchingFactor,nodesPerPly,"
+                + "totalMs,generateMs,orderMs,utilityMs,distanceMs";
+    }
+
+    /**
+     * Ends the turn, commits the JFR event if a recording wants it and returns the turn as a line
+     * in the given format, csv or json.
+     *
+     * @param depth The deepest iteration that finished
+     */
+    String finish(int turn, int depth, String format) {
+        long elapsed = System.nanoTime() - start;
+        long nodes = nodes();
+        double nodesPerSecond = elapsed == 0 ? 0 : nodes * 1e9 / elapsed;
+        int plys = deepestPly() + 1;
+
+        event.end();
+        if (event.shouldCommit()) {
+            event.turn = turn;
+            event.depth = depth;
+            event.nodes = nodes;
+            event.nodesPerSecond = nodesPerSecond;
+            event.cutoffs = cutoffs();
+            event.cutoffsAtIndex = join(cutoffsAt, CUTOFF_INDICES, ",");
+            event.branchingFactor = branchingFactor();
+            event.nodesPerPly = join(nodesPerPly, plys, ",");
+            event.generateTime = generateTime.sum();
+            event.orderTime = orderTime.sum();
+            event.utilityTime = utilityTime.sum() - distanceTime.sum();
+            event.distanceTime = distanceTime.sum();
+            event.commit();
+        }
+
+        if ("csv".equals(format)) {
+            return String.format("%d,%d,%d,%.0f,%d,%s,%.2f,%s,%.3f,%.3f,%.3f,%.3f,%.3f", turn, depth, nodes, nodesPerSecond,
+                    cutoffs(), join(cutoffsAt, CUTOFF_INDICES, ";"), branchingFactor(), join(nodesPerPly, plys, ";"),
+                    elapsed / 1e6, generateTime.sum() / 1e6, orderTime.sum() / 1e6,
+                    (utilityTime.sum() - distanceTime.sum()) / 1e6, distanceTime.sum() / 1e6);
+        } else if ("json".equals(format)) {
+            return String.format("{\"turn\":%d,\"depth\":%d,\"nodes\":%d,\"nodesPerSecond\":%.0f,\"cutoffs\":%d,"
+                            + "\"cutoffsAtIndex\":[%s],\"branchingFactor\":%.2f,\"nodesPerPly\":[%s],\"totalMs\":%.3f,"
+                            + "\"generateMs\":%.3f,\"orderMs\":%.3f,\"utilityMs\":%.3f,\"distanceMs\":%.3f}",
+                    turn, depth, nodes, nodesPerSecond, cutoffs(), join(cutoffsAt, CUTOFF_INDICES, ","), branchingFactor(),
+                    join(nodesPerPly, plys, ","), elapsed / 1e6, generateTime.sum() / 1e6, orderTime.sum() / 1e6,
+                    (utilityTime.sum() - distanceTime.sum()) / 1e6, distanceTime.sum() / 1e6);
+        }
+        return null;
+    }
+
+    /**
+     * One turn of the search as a JFR event, recorded with e.g.
+     * -XX:StartFlightRecording=settings=profile,filename=search.jfr
+     */
+    @Name("edu.cwru.sepia.minimax.SearchTurn")
+    @Label("Minimax Search Turn")
+    @Category({"SEPIA", "Minimax"})
+    @Description("Counters and phase times of one turn of the alpha beta search")
+    static class TurnEvent extends Event {
+        @Label("Turn")
+        int turn;
+
+        @Label("Depth Completed")
+        int depth;
+
+        @Label("Nodes")
+        long nodes;
+
+        @Label("Nodes per Second")
+        double nodesPerSecond;
+
+        @Label("Beta Cutoffs")
+        long cutoffs;
+
+        @Label("Cutoffs by Child Index")
+        @Description("Cutoffs caused by the first, second, ... child searched, the last counts the rest")
+        String cutoffsAtIndex;
+
+        @Label("Effective Branching Factor")
+        double branchingFactor;
+
+        @Label("Nodes per Ply")
+        String nodesPerPly;
+
+        @Label("Move Generation Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long generateTime;
+
+        @Label("Move Ordering Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long orderTime;
+
+        @Label("Utility Time")
+        @Description("getUtility not counting the distances")
+        @Timespan(Timespan.NANOSECONDS)
+        long utilityTime;
+
+        @Label("Distance Time")
+        @Description("Distance table lookups and A* for the utility")
+        @Timespan(Timespan.NANOSECONDS)
+        long distanceTime;
+    }
+}
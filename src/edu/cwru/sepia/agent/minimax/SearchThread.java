@@ -0,0 +1,10 @@
+package edu.cwru.sepia.agent.minimax;
+
+/**
+ * What alphaBetaValue needs that belongs to the thread running it rather than the search.
+ */
+class SearchThread {
+    final TranspositionTable.Entry entry = new TranspositionTable.Entry(); // probe results
+    int rootDepth; // depth of the iteration the thread is searching, so nodes can work out their ply
+    volatile boolean stopped = false; // set by another thread to abandon the thread's iteration
+}
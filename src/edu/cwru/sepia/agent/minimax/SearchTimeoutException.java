@@ -0,0 +1,12 @@
+package edu.cwru.sepia.agent.minimax;
+
+//Thrown through the search when the turn's time budget runs out
+class SearchTimeoutException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    static final SearchTimeoutException INSTANCE = new SearchTimeoutException();
+
+    private SearchTimeoutException() {
+        super("search deadline passed", null, false, false);
+    }
+}
@@ -0,0 +1,244 @@
+package edu.cwru.sepia.agent.minimax;
+
+import edu.cwru.sepia.environment.model.state.State;
+import edu.cwru.sepia.environment.model.state.Unit;
+import edu.cwru.sepia.util.Direction;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Builds the EndgameTablebase of a map by retrograde analysis: every position where the side to
+ * move can kill with its next attack is a win in 1 ply, then working backwards one ply at a time,
+ * a position is a win in n + 1 if some move reaches a loss in n, and a loss in n + 1 once every
+ * move has been found to reach a win, the last of them in n.
+ *
+ * Each ply is a pass over the whole table, unmaking the moves that lead into the positions decided
+ * in the pass before. Positions nothing ever decides are the ones neither side can force, mostly
+ * the archer keeping away forever, and stay UNKNOWN. So do the few that take longer than
+ * EndgameTablebase.MAX_PLYS.
+ *
+ * The footman's and archer's health buckets go up to the most health any of them has on the map,
+ * and the archer range is the map's archers'. On the shipped 25x19 maps the table is about 60 MB
+ * and takes under a minute.
+ *
+ * It only has positions with one footman and one archer. Each more unit multiplies the positions
+ * by its cells and hits: with a byte a position, the shipped maps would need about 50 to 70 GB for
+ * one footman against two archers, 250 to 390 GB for two footmen against one archer and hundreds
+ * of terabytes for two against two. A table has to fit one mapped buffer, under 2 GB, and the
+ * generator keeps two bytes a position in memory, so none of those can be built here.
+ *
+ * Usage: TablebaseGenerator map.xml table.tb
+ * e.g. java -cp lib/Sepia.jar:<compiled classes> edu.cwru.sepia.agent.minimax.TablebaseGenerator data/Game2fv1a_Obstacles.xml 2fv1a.tb
+ */
+public class TablebaseGenerator {
+
+    private final EndgameTablebase table; // the layout, its entries are the values array
+    private final int[] step; // [cell number * MOVES + move] the cell a unit steps to, -1 if it can't
+    private final int[] unstep; // [cell number * MOVES + move] the cell a unit stepped from, -1 if it can't have
+    private final byte[] values; // [index] the encoded result of each position
+    private final byte[] remaining; // [index] moves not yet known to lose, for the undecided positions
+    private int decided = 0;
+
+    private TablebaseGenerator(EndgameTablebase table) {
+        this.table = table;
+        int moves = GameState.MOVES.length;
+        step = new int[table.openCells * moves];
+        unstep = new int[table.openCells * moves];
+        for (int cell = 0; cell < table.openCells; cell++) {
+            int x = table.openCell[cell] % table.xExtent;
+            int y = table.openCell[cell] / table.xExtent;
+            for (int move = 0; move < moves; move++) {
+                Direction direction = GameState.MOVES[move];
+                step[cell * moves + move] = open(x + direction.xComponent(), y + direction.yComponent());
+                unstep[cell * moves + move] = open(x - direction.xComponent(), y - direction.yComponent());
+            }
+        }
+        values = new byte[(int) table.entryCount()];
+        remaining = new byte[values.length];
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: TablebaseGenerator map.xml table.tb");
+            System.exit(1);
+        }
+        State.StateView state = MapLoader.load(args[0], 0);
+        int footmanHealth = 0;
+        for (Unit.UnitView footman : state.getUnits(0)) {
+            footmanHealth = Math.max(footmanHealth, footman.getHP());
+        }
+        int archerHealth = 0;
+        int range = -1;
+        for (Unit.UnitView archer : state.getUnits(1)) {
+            archerHealth = Math.max(archerHealth, archer.getHP());
+            range = archer.getTemplateView().getRange();
+        }
+        if (footmanHealth == 0 || archerHealth == 0) {
+            System.err.println("The map needs at least one footman and one archer");
+            System.exit(1);
+        }
+
+        EndgameTablebase table = new EndgameTablebase(state.getXExtent(), state.getYExtent(),
+                EndgameTablebase.blockedCells(state), range,
+                EndgameTablebase.hits(footmanHealth, GameState.ARCHER_DAMAGE),
+                EndgameTablebase.hits(archerHealth, GameState.FOOTMAN_DAMAGE), null);
+        if (table.entryCount() > Integer.MAX_VALUE - EndgameTablebase.HEADER_BYTES) {
+            System.err.println("The map has " + table.entryCount() + " positions, too many for one mapped file");
+            System.exit(1);
+        }
+
+        long start = System.nanoTime();
+        TablebaseGenerator generator = new TablebaseGenerator(table);
+        int longest = generator.generate();
+        generator.write(args[1]);
+        System.out.printf("%s%n%d decided, longest %d plys, in %.1f s%n", table, generator.decided, longest,
+                (System.nanoTime() - start) / 1e9);
+    }
+
+    // the number of the cell at (x, y), or -1 if it is off the map or has a resource
+    private int open(int x, int y) {
+        if (x < 0 || y < 0 || x >= table.xExtent || y >= table.yExtent) {
+            return -1;
+        }
+        return table.openIndex[y * table.xExtent + x];
+    }
+
+    private boolean nextTo(int footman, int archer) {
+        int f = table.openCell[footman];
+        int a = table.openCell[archer];
+        return Math.max(Math.abs(f % table.xExtent - a % table.xExtent), Math.abs(f / table.xExtent - a / table.xExtent)) == 1;
+    }
+
+    private boolean inRange(int archer, int footman) {
+        int f = table.openCell[footman];
+        int a = table.openCell[archer];
+        return Math.abs(f % table.xExtent - a % table.xExtent) + Math.abs(f / table.xExtent - a / table.xExtent) <= table.range;
+    }
+
+    /**
+     * Fills in the values, returns the longest result found.
+     */
+    private int generate() {
+        int longest = initialize();
+        for (int plys = 1; plys <= longest; plys++) {
+            //wins take an odd number of plys and losses an even one
+            byte entry = EndgameTablebase.encode(plys % 2 == 1 ? plys : -plys);
+            int index = 0;
+            for (int side = 0; side < 2; side++) {
+                for (int footmanHits = 1; footmanHits <= table.footmanHits; footmanHits++) {
+                    for (int archerHits = 1; archerHits <= table.archerHits; archerHits++) {
+                        for (int footman = 0; footman < table.openCells; footman++) {
+                            for (int archer = 0; archer < table.openCells; archer++, index++) {
+                                if (values[index] == entry) {
+                                    longest = Math.max(longest, unmake(side == 0, footman, archer, footmanHits, archerHits, plys));
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return longest;
+    }
+
+    // counts the moves of every position and marks the ones with a killing attack as won in 1
+    private int initialize() {
+        int moves = GameState.MOVES.length;
+        int longest = 0;
+        int index = 0;
+        for (int side = 0; side < 2; side++) {
+            for (int footmanHits = 1; footmanHits <= table.footmanHits; footmanHits++) {
+                for (int archerHits = 1; archerHits <= table.archerHits; archerHits++) {
+                    for (int footman = 0; footman < table.openCells; footman++) {
+                        for (int archer = 0; archer < table.openCells; archer++, index++) {
+                            if (footman == archer) {
+                                continue;
+                            }
+                            int count = 0;
+                            boolean attacks = side == 0 ? nextTo(footman, archer) : inRange(archer, footman);
+                            if (attacks) {
+                                if ((side == 0 ? archerHits : footmanHits) == 1) {
+                                    values[index] = EndgameTablebase.encode(1);
+                                    decided++;
+                                    longest = 1;
+                                    continue;
+                                }
+                                count++;
+                            }
+                            int mover = side == 0 ? footman : archer;
+                            int other = side == 0 ? archer : footman;
+                            for (int move = 0; move < moves; move++) {
+                                int to = step[mover * moves + move];
+                                if (to >= 0 && to != other) {
+                                    count++;
+                                }
+                            }
+                            remaining[index] = (byte) count;
+                        }
+                    }
+                }
+            }
+        }
+        return longest;
+    }
+
+    /**
+     * Goes through the positions one move before a decided one, where the other side is to move.
+     * Returns plys + 1 if that decided any of them, otherwise 0.
+     */
+    private int unmake(boolean footmenToMove, int footman, int archer, int footmanHits, int archerHits, int plys) {
+        int moves = GameState.MOVES.length;
+        int decidedAny = 0;
+        if (footmenToMove) {
+            //the archer moved last, from a neighbouring cell or by attacking from here
+            for (int move = 0; move < moves; move++) {
+                int from = unstep[archer * moves + move];
+                if (from >= 0 && from != footman) {
+                    decidedAny |= decide(table.index(false, footman, from, footmanHits, archerHits), plys);
+                }
+            }
+            if (inRange(archer, footman) && footmanHits < table.footmanHits) {
+                decidedAny |= decide(table.index(false, footman, archer, footmanHits + 1, archerHits), plys);
+            }
+        } else {
+            for (int move = 0; move < moves; move++) {
+                int from = unstep[footman * moves + move];
+                if (from >= 0 && from != archer) {
+                    decidedAny |= decide(table.index(true, from, archer, footmanHits, archerHits), plys);
+                }
+            }
+            if (nextTo(footman, archer) && archerHits < table.archerHits) {
+                decidedAny |= decide(table.index(true, footman, archer, footmanHits, archerHits + 1), plys);
+            }
+        }
+        return decidedAny != 0 ? plys + 1 : 0;
+    }
+
+    // a move from the position at index reaches a position decided in plys. Returns 1 if that decides it
+    private int decide(int index, int plys) {
+        if (values[index] != EndgameTablebase.UNKNOWN || plys + 1 > EndgameTablebase.MAX_PLYS) {
+            return 0;
+        }
+        if (plys % 2 == 0) {
+            //the move leaves the other side lost
+            values[index] = EndgameTablebase.encode(plys + 1);
+        } else if (--remaining[index] == 0) {
+            //every move leaves the other side won, the one found last takes longest
+            values[index] = EndgameTablebase.encode(-(plys + 1));
+        } else {
+            return 0;
+        }
+        decided++;
+        return 1;
+    }
+
+    private void write(String file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            table.writeHeader(out);
+            out.write(values);
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package edu.cwru.sepia.agent.minimax;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fixed size transposition table for the alpha beta search, keyed by GameState Zobrist hashes.
+ *
+ * Entries live in one long array so the table never allocates after construction. Each bucket
+ * holds two entries: the first only gets replaced by a search that was at least as deep
+ * (depth-preferred), the second takes whatever does not fit in the first (always-replace).
+ *
+ * Every search thread reads and writes the table without locking. An entry is three longs: the
+ * value's bits, a data word with the depth, bound and move, and the key XORed with both of them.
+ * Each long is written in one go, but nothing stops two threads writing the same entry at once,
+ * or a thread reading one another thread is halfway through writing. The longs then come from
+ * different writes and XORing them back together doesn't give the key, so probe treats the
+ * entry as a miss rather than returning another state's value. The data word also keeps the top
+ * bits of the key, which tells such a torn entry apart from an entry for another state, and who
+ * wrote the entry, so the table can count how often the threads run into each other and how often
+ * one finds what another stored.
+ */
+public class TranspositionTable {
+
+    public static final byte EXACT = 0; // value is the minimax value of the state
+    public static final byte LOWER = 1; // search failed high, value is a lower bound
+    public static final byte UPPER = 2; // search failed low, value is an upper bound
+
+    public static final int NO_MOVE = -1;
+
+    // check (key ^ value ^ data), value, data
+    private static final int ENTRY_LONGS = 3;
+    private static final int ENTRY_BYTES = 8 * ENTRY_LONGS;
+
+    // data word: move (16 bits), bound (8), depth + 1 so an empty entry is 0 (8), writer (16), top of the key (16)
+    private static final int BOUND_SHIFT = 16;
+    private static final int DEPTH_SHIFT = 24;
+    private static final int WRITER_SHIFT = 32;
+    private static final int KEY_SHIFT = 48;
+
+    /**
+     * A copy of one table entry, filled in by probe. Each search thread keeps its own.
+     */
+    public static class Entry {
+        public int depth;
+        public double value;
+        public byte bound;
+        public int move;
+    }
+
+    private final long[] entries;
+    private final int bucketMask;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder stores = new LongAdder();
+    private final LongAdder overwrites = new LongAdder();
+    private final LongAdder sharedHits = new LongAdder(); // hits on an entry another thread stored
+    private final LongAdder tornReads = new LongAdder(); // entries found half written by two threads
+
+    /**
+     * @param megabytes The memory budget for the entries. The table uses the largest power of two
+     *                  number of buckets that fits.
+     */
+    public TranspositionTable(int megabytes) {
+        long budget = Math.max(1, megabytes) * 1024L * 1024L;
+        int buckets = Integer.highestOneBit((int) Math.min(budget / (2 * ENTRY_BYTES), 1 << 28));
+        bucketMask = buckets - 1;
+        entries = new long[buckets * 2 * ENTRY_LONGS];
+    }
+
+    /**
+     * Looks up a state.
+     *
+     * @param key The Zobrist hash of the state
+     * @param entry Receives the stored depth, value, bound and move when the state is found
+     * @return Whether the state was in the table
+     */
+    public boolean probe(long key, Entry entry) {
+        int bucket = bucketOf(key);
+        for (int i = bucket; i < bucket + 2 * ENTRY_LONGS; i += ENTRY_LONGS) {
+            //Read each long once, then check they all came from the same write
+            long check = entries[i];
+            long valueBits = entries[i + 1];
+            long data = entries[i + 2];
+            if ((check ^ valueBits ^ data) == key && data != 0) {
+                entry.depth = (int) (data >>> DEPTH_SHIFT & 0xFF) - 1;
+                entry.value = Double.longBitsToDouble(valueBits);
+                entry.bound = (byte) (data >>> BOUND_SHIFT);
+                entry.move = (short) data;
+                hits.increment();
+                if ((int) (data >>> WRITER_SHIFT & 0xFFFF) != writer()) {
+                    sharedHits.increment();
+                }
+                return true;
+            }
+            if (isTorn(check, valueBits, data)) {
+                tornReads.increment();
+            }
+        }
+        misses.increment();
+        return false;
+    }
+
+    /**
+     * Records the result of searching a state.
+     *
+     * @param key The Zobrist hash of the state
+     * @param depth The number of plys searched under the state
+     * @param value The backed up value
+     * @param bound Whether value is EXACT, a LOWER bound or an UPPER bound
+     * @param move The index of the best child in getChildren order, or NO_MOVE
+     */
+    public void store(long key, int depth, double value, byte bound, int move) {
+        int slot = bucketOf(key);
+        depth = Math.min(depth, Byte.MAX_VALUE);
+        // same state or a shallower result goes in the depth-preferred entry, the rest in the other
+        long data = entries[slot + 2];
+        long stored = entries[slot] ^ entries[slot + 1] ^ data;
+        if (data != 0 && stored != key && (int) (data >>> DEPTH_SHIFT & 0xFF) - 1 > depth) {
+            slot += ENTRY_LONGS;
+            data = entries[slot + 2];
+            stored = entries[slot] ^ entries[slot + 1] ^ data;
+        }
+        if (data != 0 && stored != key) {
+            overwrites.increment();
+        }
+
+        long valueBits = Double.doubleToLongBits(value);
+        data = (key >>> KEY_SHIFT << KEY_SHIFT) | ((long) writer() << WRITER_SHIFT)
+                | ((long) (depth + 1) << DEPTH_SHIFT) | ((bound & 0xFFL) << BOUND_SHIFT) | (move & 0xFFFFL);
+        entries[slot + 1] = valueBits;
+        entries[slot + 2] = data;
+        entries[slot] = key ^ valueBits ^ data;
+        stores.increment();
+    }
+
+    // the longs of an entry came from different writes: the key they make doesn't start with the bits the data word kept of it
+    private static boolean isTorn(long check, long valueBits, long data) {
+        return data != 0 && ((check ^ valueBits ^ data) ^ data) >>> KEY_SHIFT != 0;
+    }
+
+    // who is storing or probing, as far as telling threads apart goes
+    private static int writer() {
+        return (int) Thread.currentThread().getId() & 0xFFFF;
+    }
+
+    /**
+     * Empties the table. Not safe to call while a search is using it.
+     */
+    public void clear() {
+        Arrays.fill(entries, 0);
+        resetCounters();
+    }
+
+    public void resetCounters() {
+        hits.reset();
+        misses.reset();
+        stores.reset();
+        overwrites.reset();
+        sharedHits.reset();
+        tornReads.reset();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getStores() {
+        return stores.sum();
+    }
+
+    public long getOverwrites() {
+        return overwrites.sum();
+    }
+
+    /**
+     * @return Hits on entries a different thread stored, how much the search threads share
+     */
+    public long getSharedHits() {
+        return sharedHits.sum();
+    }
+
+    /**
+     * @return Entries probe found with their longs from two different writes, how often the
+     *         threads write over each other
+     */
+    public long getTornReads() {
+        return tornReads.sum();
+    }
+
+    public int capacity() {
+        return entries.length / ENTRY_LONGS;
+    }
+
+    private int bucketOf(long key) {
+        // the low bits pick the bucket, mix in the high bits so nearby keys spread out
+        return (int) ((key ^ (key >>> 32)) & bucketMask) * 2 * ENTRY_LONGS;
+    }
+
+    @Override
+    public String toString() {
+        long hitCount = getHits();
+        long probes = hitCount + getMisses();
+        return String.format("TT: %d hits, %d misses (%.1f%% hit rate), %d stores, %d overwrites, %d entries, "
+                        + "%d hits from other threads, %d torn reads",
+                hitCount, getMisses(), probes == 0 ? 0.0 : 100.0 * hitCount / probes, getStores(), getOverwrites(), capacity(),
+                getSharedHits(), getTornReads());
+    }
+}
@@ -0,0 +1,69 @@
+package edu.cwru.sepia.agent.minimax;
+
+import java.util.Random;
+
+/**
+ * Random keys used to build the Zobrist hash of a GameState.
+ *
+ * A state's hash is the XOR of one key per unit and the turn key when it is the archers' move.
+ * A unit's key is a mix of a random key for its side and cell, one for its side and health and
+ * one if it attacked to reach the state. It doesn't depend on which unit it is, so two footmen
+ * that swap places hash the same, the way they play the same. The mix is what keeps a footman
+ * with 100 health at A and one with 50 at B apart from the other way around, which plain XOR of
+ * the three keys wouldn't.
+ *
+ * The keys only depend on the map size, so they are the same from run to run, which the
+ * persistent transposition table relies on. MapData keeps the instance for each map.
+ */
+class ZobristKeys {
+
+    static final int MAX_HEALTH = 512; // health above this shares the last key
+
+    final int xExtent;
+    final int yExtent;
+    final long[][] position; // [0 for footmen, 1 for archers][cell index]
+    final long[][] health; // [side][hit points]
+    final long[] attacking; // [side]
+    final long archerTurn;
+
+    ZobristKeys(int xExtent, int yExtent) {
+        this.xExtent = xExtent;
+        this.yExtent = yExtent;
+
+        // fixed seed so hashes are reproducible between runs
+        Random random = new Random(0x5EB1A2L ^ ((long) xExtent << 32) ^ yExtent);
+        position = new long[2][xExtent * yExtent];
+        health = new long[2][MAX_HEALTH];
+        attacking = new long[2];
+        for (int side = 0; side < 2; side++) {
+            for (int cell = 0; cell < position[side].length; cell++) {
+                position[side][cell] = random.nextLong();
+            }
+            for (int hp = 0; hp < MAX_HEALTH; hp++) {
+                health[side][hp] = random.nextLong();
+            }
+            attacking[side] = random.nextLong();
+        }
+        archerTurn = random.nextLong();
+    }
+
+    // about how much memory the keys take
+    long sizeInBytes() {
+        return 8L * (position[0].length + position[1].length + health[0].length + health[1].length);
+    }
+
+    /**
+     * @param footman Whether the unit is a footman or an archer
+     */
+    long unitKey(boolean footman, int x, int y, int hp, boolean attacked) {
+        int side = footman ? 0 : 1;
+        long key = position[side][y * xExtent + x] ^ health[side][Math.max(0, Math.min(hp, MAX_HEALTH - 1))];
+        if (attacked) {
+            key ^= attacking[side];
+        }
+        //a 64 bit finalizer, anything that isn't linear in XOR does
+        key = (key ^ (key >>> 33)) * 0xff51afd7ed558ccdL;
+        key = (key ^ (key >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return key ^ (key >>> 33);
+    }
+}